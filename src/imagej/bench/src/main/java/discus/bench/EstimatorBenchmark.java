@@ -0,0 +1,141 @@
+package discus.bench;
+
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full estimation of the transformation of one frame against a template,
+ * as done for every slice of a stack. The frame is shifted by a known amount
+ * which the estimation is checked to recover before measuring.
+ *
+ * The "iterations" and "estimates" secondary results count Gauss-Newton
+ * iterations (over all pyramid levels) and estimations during each
+ * measurement iteration; their ratio is the mean number of iterations
+ * needed to converge.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class EstimatorBenchmark {
+
+    static final int MAX_ITER = 200;
+    static final double TOL = 1e-7;
+    static final double SHIFT_X = 3.4;
+    static final double SHIFT_Y = -2.2;
+
+    @Param({ "640x480", "1600x1200", "4000x3000" })
+    public String size;
+
+    @Param({ "1" })
+    public int pyramidLevel;
+
+    private Stabilizer translation;
+    private Stabilizer affine;
+    private Stabilizer phaseCorrelation;
+    private Stabilizer features;
+    private Object translationWorkspace;
+    private Object affineWorkspace;
+    private Object phaseCorrelationWorkspace;
+    private Object featuresWorkspace;
+    private FloatProcessor frame;
+    private FloatProcessor template;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Convergence {
+        public long iterations;
+        public long estimates;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            iterations = 0;
+            estimates = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        int[] wh = Frames.size(size);
+        template = Frames.frame(wh[0], wh[1], 0, 0, 42);
+        frame = Frames.frame(wh[0], wh[1], SHIFT_X, SHIFT_Y, 42);
+
+        translation = new Stabilizer(Stabilizer.TRANSLATION, pyramidLevel);
+        affine = new Stabilizer(Stabilizer.AFFINE, pyramidLevel);
+        phaseCorrelation = new Stabilizer(Stabilizer.PHASE_CORRELATION, pyramidLevel);
+        translationWorkspace = translation.createWorkspace(wh[0], wh[1]);
+        affineWorkspace = affine.createWorkspace(wh[0], wh[1]);
+        phaseCorrelationWorkspace = phaseCorrelation.createWorkspace(wh[0], wh[1]);
+        features = new Stabilizer(Stabilizer.FEATURES, pyramidLevel);
+        featuresWorkspace = features.createWorkspace(wh[0], wh[1]);
+
+        check("translation", translation.estimateTranslation(
+            frame, template, translationWorkspace, MAX_ITER, TOL), 0, 0);
+        check("affine", affine.estimateAffine(
+            frame, template, affineWorkspace, MAX_ITER, TOL), 2, 2);
+        check("phase correlation", phaseCorrelation.estimatePhaseCorrelation(
+            frame, template, phaseCorrelationWorkspace, MAX_ITER, TOL), 0, 0);
+        check("feature matching", features.estimateFeatures(
+            frame, template, featuresWorkspace, MAX_ITER, TOL), 2, 2);
+    }
+
+    private static void check(String name, double[][] wp, int x, int y) {
+        // the frame is shifted by SHIFT, the estimation should bring it back
+        if (Math.abs(wp[0][x] + SHIFT_X) > 0.5 || Math.abs(wp[1][y] + SHIFT_Y) > 0.5)
+            throw new IllegalStateException("The " + name + " estimation did not recover the shift: "
+                + wp[0][x] + "," + wp[1][y] + " instead of " + (-SHIFT_X) + "," + (-SHIFT_Y));
+    }
+
+    @Benchmark
+    public double[][] estimateTranslation(Convergence convergence) {
+        double[][] wp = translation.estimateTranslation(
+            frame, template, translationWorkspace, MAX_ITER, TOL);
+        convergence.iterations += translation.iterations(translationWorkspace);
+        convergence.estimates++;
+        return wp;
+    }
+
+    @Benchmark
+    public double[][] estimateAffine(Convergence convergence) {
+        double[][] wp = affine.estimateAffine(
+            frame, template, affineWorkspace, MAX_ITER, TOL);
+        convergence.iterations += affine.iterations(affineWorkspace);
+        convergence.estimates++;
+        return wp;
+    }
+
+    @Benchmark
+    public double[][] estimatePhaseCorrelation(Convergence convergence) {
+        double[][] wp = phaseCorrelation.estimatePhaseCorrelation(
+            frame, template, phaseCorrelationWorkspace, MAX_ITER, TOL);
+        convergence.iterations += phaseCorrelation.iterations(phaseCorrelationWorkspace);
+        convergence.estimates++;
+        return wp;
+    }
+
+    @Benchmark
+    public double[][] estimateFeatures(Convergence convergence) {
+        double[][] wp = features.estimateFeatures(
+            frame, template, featuresWorkspace, MAX_ITER, TOL);
+        convergence.iterations += features.iterations(featuresWorkspace);
+        convergence.estimates++;
+        return wp;
+    }
+}
@@ -0,0 +1,69 @@
+package discus.bench;
+
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+/**
+ * Synthetic frames resembling the DISC images: a smooth textured background
+ * and a bright ring standing for the aquarium, seen through a camera that
+ * drifted by a known amount.
+ */
+final class Frames {
+
+    /** Spacing of the random grid from which the texture is interpolated, in pixels. */
+    private static final int GRAIN = 8;
+
+    private Frames() {}
+
+    /** Parses a "widthxheight" benchmark parameter. */
+    static int[] size(String size) {
+        String[] parts = size.split("x");
+        return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * The scene sampled at (x + dx, y + dy): a frame where the content moved
+     * by (-dx, -dy) compared to the frame with no shift. Stabilizing it
+     * against the unshifted frame should therefore give a translation of
+     * (-dx, -dy), which brings the content back in place.
+     */
+    static FloatProcessor frame(int width, int height, double dx, double dy, long seed) {
+        int gridWidth = width / GRAIN + 4;
+        int gridHeight = height / GRAIN + 4;
+        float[] grid = new float[gridWidth * gridHeight];
+        Random random = new Random(seed);
+        for (int i = 0; i < grid.length; ++i)
+            grid[i] = 100f * random.nextFloat();
+
+        double cx = width / 2.0;
+        double cy = height / 2.0;
+        double radius = 0.4 * Math.min(width, height);
+
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; ++y) {
+            double ys = y + dy;
+            for (int x = 0; x < width; ++x) {
+                double xs = x + dx;
+                double value = texture(grid, gridWidth, gridHeight, xs, ys);
+                double r = Math.hypot(xs - cx, ys - cy);
+                value += 120.0 * Math.exp(-(r - radius) * (r - radius) / 18.0);
+                pixels[y * width + x] = (float) value;
+            }
+        }
+        return new FloatProcessor(width, height, pixels, null);
+    }
+
+    private static double texture(float[] grid, int gridWidth, int gridHeight, double x, double y) {
+        double gx = Math.min(Math.max(x / GRAIN + 1, 0), gridWidth - 1.001);
+        double gy = Math.min(Math.max(y / GRAIN + 1, 0), gridHeight - 1.001);
+        int ix = (int) gx;
+        int iy = (int) gy;
+        double fx = gx - ix;
+        double fy = gy - iy;
+        int i = iy * gridWidth + ix;
+        double top = grid[i] + fx * (grid[i + 1] - grid[i]);
+        double bottom = grid[i + gridWidth] + fx * (grid[i + gridWidth + 1] - grid[i + gridWidth]);
+        return top + fy * (bottom - top);
+    }
+}
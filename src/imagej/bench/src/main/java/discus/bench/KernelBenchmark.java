@@ -0,0 +1,153 @@
+package discus.bench;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-pixel kernels of Image_Stabilizer, each over one full frame.
+ *
+ * With kernels=default, the plugin uses the vector kernels when the forked
+ * JVM runs with the Vector API module (-jvmArgsPrepend
+ * "--add-modules=jdk.incubator.vector"), and the scalar ones otherwise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class KernelBenchmark {
+
+    @Param({ "640x480", "1600x1200", "4000x3000" })
+    public String size;
+
+    @Param({ "4" })
+    public int pyramidLevel;
+
+    @Param({ "default", "scalar" })
+    public String kernels;
+
+    private Stabilizer stabilizer;
+    private FloatProcessor frame;
+    private FloatProcessor out;
+    private FloatProcessor half;
+    private float[] derivative;
+    private float[] derivative2;
+    private ImageProcessor[] pyramid;
+    private float[] error;
+    private FloatProcessor reference;
+    private float[][] sd;
+    private double[] b;
+    private int[] runs;
+    private int n;
+
+    private final double[][] translation = { { 3.4 }, { -2.2 } };
+    private final double[][] affine = { { 0.01, 0.005, 3.4 }, { -0.004, 0.01, -2.2 } };
+
+    @Setup
+    public void setup() {
+        int[] wh = Frames.size(size);
+        stabilizer = new Stabilizer(Stabilizer.TRANSLATION, pyramidLevel);
+        frame = Frames.frame(wh[0], wh[1], 0, 0, 42);
+        out = new FloatProcessor(wh[0], wh[1]);
+        half = new FloatProcessor(wh[0] / 2, wh[1] / 2);
+        n = wh[0] * wh[1];
+        derivative = stabilizer.dx(frame, new float[n]);
+        derivative2 = new float[n];
+        pyramid = stabilizer.createPyramid(wh[0], wh[1]);
+        error = (float[]) Frames.frame(wh[0], wh[1], 3.4, -2.2, 42).getPixels();
+        if (kernels.equals("scalar")) {
+            stabilizer.useScalarKernels();
+        }
+
+        // the six steepest descent images of the affine estimation, and its rows as runs
+        reference = Frames.frame(wh[0], wh[1], 3.4, -2.2, 42);
+        sd = new float[6][];
+        for (int k = 0; k < 6; k++) {
+            sd[k] = (float[]) Frames.frame(wh[0], wh[1], k, -k, 42 + k).getPixels();
+        }
+        b = new double[6];
+        runs = new int[2 * wh[1]];
+        for (int y = 0; y < wh[1]; y++) {
+            runs[2 * y] = y * wh[0];
+            runs[2 * y + 1] = (y + 1) * wh[0];
+        }
+    }
+
+    @Benchmark
+    public FloatProcessor gradient() {
+        stabilizer.gradient(out, frame);
+        return out;
+    }
+
+    @Benchmark
+    public float[] dx() {
+        return stabilizer.dx(frame, derivative);
+    }
+
+    @Benchmark
+    public float[] dy() {
+        return stabilizer.dy(frame, derivative);
+    }
+
+    @Benchmark
+    public float[] derivatives() {
+        stabilizer.derivatives(frame, derivative, derivative2);
+        return derivative2;
+    }
+
+    @Benchmark
+    public ImageProcessor[] buildPyramid() {
+        stabilizer.buildPyramid(pyramid, frame);
+        return pyramid;
+    }
+
+    @Benchmark
+    public double dotSum() {
+        return stabilizer.dotSum(derivative, error, n);
+    }
+
+    /** Error image, its RMSE and the six dot products of one affine iteration. */
+    @Benchmark
+    public double subtractDotSums() {
+        return stabilizer.subtractDotSums(out, reference, sd, 6, b, runs);
+    }
+
+    @Benchmark
+    public FloatProcessor combine() {
+        stabilizer.combine(out, reference);
+        return out;
+    }
+
+    @Benchmark
+    public FloatProcessor resize() {
+        stabilizer.resize(half, frame);
+        return half;
+    }
+
+    @Benchmark
+    public FloatProcessor warpTranslation() {
+        stabilizer.warpTranslation(out, frame, translation);
+        return out;
+    }
+
+    @Benchmark
+    public FloatProcessor warpAffine() {
+        stabilizer.warpAffine(out, frame, affine);
+        return out;
+    }
+}
@@ -0,0 +1,220 @@
+package discus.bench;
+
+import ij.process.ImageProcessor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the kernels of the Image_Stabilizer plugin.
+ *
+ * Like all ImageJ plugins, Image_Stabilizer lives in the default package,
+ * which cannot be referenced from a named package (and JMH does not accept
+ * benchmarks in the default package). Its package-private methods are
+ * therefore looked up once by reflection and called through method handles
+ * bound to one instance of the plugin.
+ */
+final class Stabilizer {
+
+    static final int TRANSLATION = 0;
+    static final int AFFINE = 1;
+    static final int PHASE_CORRELATION = 2;
+    static final int FEATURES = 3;
+
+    private final Object plugin;
+    private final MethodHandle gradient;
+    private final MethodHandle resize;
+    private final MethodHandle dx;
+    private final MethodHandle dy;
+    private final MethodHandle derivatives;
+    private final MethodHandle buildPyramid;
+    private final MethodHandle createPyramid;
+    private final MethodHandle dotSum;
+    private final MethodHandle subtractDotSums;
+    private final MethodHandle combine;
+    private final MethodHandle warpTranslation;
+    private final MethodHandle warpAffine;
+    private final MethodHandle estimateTranslation;
+    private final MethodHandle estimateAffine;
+    private final MethodHandle estimatePhaseCorrelation;
+    private final MethodHandle estimateFeatures;
+    private final MethodHandle createWorkspace;
+    private final Field iterations;
+    private final Field kernels;
+    private final Class<?> scalarKernels;
+
+    Stabilizer(int transform, int pyramidLevel) {
+        try {
+            Class<?> c = Class.forName("Image_Stabilizer");
+            Class<?> ws = Class.forName("Image_Stabilizer$Workspace");
+            plugin = c.getDeclaredConstructor().newInstance();
+            field(c, "transform").setInt(plugin, transform);
+            field(c, "pyramidLevel").setInt(plugin, pyramidLevel);
+
+            gradient = method(c, "gradient", ImageProcessor.class, ImageProcessor.class);
+            resize = method(c, "resize", ImageProcessor.class, ImageProcessor.class);
+            dx = method(c, "dx", ImageProcessor.class, float[].class);
+            dy = method(c, "dy", ImageProcessor.class, float[].class);
+            derivatives = method(c, "derivatives",
+                ImageProcessor.class, float[].class, float[].class);
+            buildPyramid = method(c, "buildPyramid", ImageProcessor[].class, ImageProcessor.class);
+            createPyramid = method(c, "createPyramid", int.class, int.class);
+            dotSum = method(c, "dotSum", float[].class, float[].class, int.class);
+            subtractDotSums = method(c, "subtractDotSums", ImageProcessor.class,
+                ImageProcessor.class, float[][].class, int.class, double[].class, int[].class);
+            combine = method(c, "combine", ImageProcessor.class, ImageProcessor.class);
+            warpTranslation = method(c, "warpTranslation",
+                ImageProcessor.class, ImageProcessor.class, double[][].class);
+            warpAffine = method(c, "warpAffine",
+                ImageProcessor.class, ImageProcessor.class, double[][].class);
+            estimateTranslation = method(c, "estimateTranslation",
+                ImageProcessor.class, ImageProcessor.class, ws, int.class, double.class);
+            estimateAffine = method(c, "estimateAffine",
+                ImageProcessor.class, ImageProcessor.class, ws, int.class, double.class);
+            estimatePhaseCorrelation = method(c, "estimatePhaseCorrelation",
+                ImageProcessor.class, ImageProcessor.class, ws, int.class, double.class);
+            estimateFeatures = method(c, "estimateFeatures",
+                ImageProcessor.class, ImageProcessor.class, ws, int.class, double.class);
+            createWorkspace = method(c, "createWorkspace", int.class, int.class);
+            iterations = field(ws, "iterations");
+            kernels = field(c, "kernels");
+            scalarKernels = Class.forName("Image_Stabilizer$Kernels");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Image_Stabilizer is not on the class path", e);
+        }
+    }
+
+    private static Field field(Class<?> c, String name) throws ReflectiveOperationException {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+
+    private MethodHandle method(Class<?> c, String name, Class<?>... types)
+            throws ReflectiveOperationException {
+        Method m = c.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        return MethodHandles.lookup().unreflect(m).bindTo(plugin);
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * Uses the scalar loops of the plugin rather than the vector ones, which
+     * it selects when the JVM runs with the jdk.incubator.vector module.
+     */
+    void useScalarKernels() {
+        try {
+            Constructor<?> scalar = scalarKernels.getDeclaredConstructor();
+            scalar.setAccessible(true);
+            kernels.set(plugin, scalar.newInstance());
+        } catch (ReflectiveOperationException e) { throw rethrow(e); }
+    }
+
+    /** The kernels used by the plugin, "scalar" or "vector (n floats)". */
+    String kernelsName() {
+        try {
+            Method name = scalarKernels.getDeclaredMethod("getName");
+            name.setAccessible(true);
+            return (String) name.invoke(kernels.get(plugin));
+        } catch (ReflectiveOperationException e) { throw rethrow(e); }
+    }
+
+    void gradient(ImageProcessor out, ImageProcessor ip) {
+        try { gradient.invoke(out, ip); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void resize(ImageProcessor out, ImageProcessor ip) {
+        try { resize.invoke(out, ip); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    float[] dx(ImageProcessor ip, float[] out) {
+        try { return (float[]) dx.invoke(ip, out); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    float[] dy(ImageProcessor ip, float[] out) {
+        try { return (float[]) dy.invoke(ip, out); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void derivatives(ImageProcessor ip, float[] dx, float[] dy) {
+        try { derivatives.invoke(ip, dx, dy); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void buildPyramid(ImageProcessor[] pyramid, ImageProcessor ip) {
+        try { buildPyramid.invoke(pyramid, ip); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    ImageProcessor[] createPyramid(int width, int height) {
+        try {
+            return (ImageProcessor[]) createPyramid.invoke(width, height);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double dotSum(float[] p1, float[] p2, int n) {
+        try { return (double) dotSum.invoke(p1, p2, n); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double subtractDotSums(ImageProcessor out, ImageProcessor ref, float[][] sd, int nSd,
+                           double[] b, int[] runs) {
+        try {
+            return (double) subtractDotSums.invoke(out, ref, sd, nSd, b, runs);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void combine(ImageProcessor out, ImageProcessor ip) {
+        try { combine.invoke(out, ip); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void warpTranslation(ImageProcessor out, ImageProcessor ip, double[][] wp) {
+        try { warpTranslation.invoke(out, ip, wp); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    void warpAffine(ImageProcessor out, ImageProcessor ip, double[][] wp) {
+        try { warpAffine.invoke(out, ip, wp); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /** A workspace of the plugin, sized for frames of the given size. */
+    Object createWorkspace(int width, int height) {
+        try { return createWorkspace.invoke(width, height); } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double[][] estimateTranslation(ImageProcessor ip, ImageProcessor ipRef, Object ws,
+                                   int maxIter, double tol) {
+        try {
+            return (double[][]) estimateTranslation.invoke(ip, ipRef, ws, maxIter, tol);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double[][] estimateAffine(ImageProcessor ip, ImageProcessor ipRef, Object ws,
+                              int maxIter, double tol) {
+        try {
+            return (double[][]) estimateAffine.invoke(ip, ipRef, ws, maxIter, tol);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double[][] estimatePhaseCorrelation(ImageProcessor ip, ImageProcessor ipRef, Object ws,
+                                        int maxIter, double tol) {
+        try {
+            return (double[][]) estimatePhaseCorrelation.invoke(ip, ipRef, ws, maxIter, tol);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    double[][] estimateFeatures(ImageProcessor ip, ImageProcessor ipRef, Object ws,
+                                int maxIter, double tol) {
+        try {
+            return (double[][]) estimateFeatures.invoke(ip, ipRef, ws, maxIter, tol);
+        } catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /** Gauss-Newton iterations of the last estimation done with this workspace. */
+    int iterations(Object ws) {
+        try { return iterations.getInt(ws); } catch (IllegalAccessException e) { throw rethrow(e); }
+    }
+}
@@ -0,0 +1,309 @@
+//
+//  DISCUS batch
+//
+//  Runs the pipeline (see Discus_Pipeline) on many deployments at once,
+//  e.g. a whole field season, in a single Java process
+//
+//  (c) Copyright 2005-2011 J-O Irisson, C Paris
+//  GNU General Public License
+//  Read the file 'src/GNU_GPL.txt' for more information
+//
+//------------------------------------------------------------
+
+import ij.*;
+import ij.io.Opener;
+import ij.macro.Interpreter;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+
+/**
+    Called from bb with the list of deployments to process:
+        java -Djava.awt.headless=true -cp ij.jar:plugins Discus_Batch \
+            list=[/path/to/list] journal=[/path/to/journal] \
+            aquarium=x,y,width,height threads=4 memory=4000 mask
+
+    The list gives one deployment per line: its directory and, optionally,
+    the number of images between two tracked images (the increment option
+    of Discus_Pipeline).
+
+    Each deployment goes through two stages, the stabilization and the
+    tracking (with the measure of the aquarium), in this order. Deployments
+    are processed in parallel by a work-stealing pool of threads, largest
+    first. Before a stage starts, the memory it needs is reserved from a
+    budget shared by all threads (memory, in MB, at most 90% of the maximum
+    heap), so that many small deployments run at once but large ones do not
+    exhaust the memory together.
+
+    Every completed stage is appended to the journal. When the run is
+    interrupted, running it again with the same journal skips the stages
+    already done: their results are still in the tmp directory of each
+    deployment, for bb to commit them.
+
+    It can also be run as a command, with the same options.
+*/
+public class Discus_Batch implements PlugIn {
+
+    static final String STABILIZE = "stabilize";
+    static final String TRACK = "track";
+    // Memory used by a stage, in bytes per pixel of an image: the images decoded ahead and waiting to be written, and the pyramids of the stabilization; the images processed at once by the tracking
+    static final int STABILIZE_BYTES_PER_PIXEL = 96;
+    static final int TRACK_BYTES_PER_PIXEL = 160;
+
+    List<Deployment> deployments = new ArrayList<Deployment>();
+    String journalFile = null;
+    Set<String> done = new HashSet<String>();
+    PrintWriter journal = null;
+    // Options given to the pipeline, for every stage
+    String pipelineOptions = "";
+    // Number of threads; deployments are processed in parallel, each by threads / deployments threads
+    int threads = 1;
+    // Memory budget, in MB
+    int memory = 0;
+    Semaphore budget;
+    int stages = 0;
+    int completed = 0;
+
+    /* A deployment, its size and the memory its stages need, in MB */
+    static class Deployment {
+        String directory;
+        int increment = 1;
+        long pixels = 0;
+        int stabilizeMemory = 0;
+        int trackMemory = 0;
+    }
+
+    public static void main(String[] args) {
+        Thread.currentThread().setName("Run$_batch");
+        Interpreter.batchMode = true;
+        StringBuffer options = new StringBuffer();
+        for (int i=0; i<args.length; i++) {
+            options.append(" " + args[i]);
+        }
+        boolean ok = new Discus_Batch().process(options.toString().trim());
+        System.exit(ok ? 0 : 1);
+    }
+
+    public void run(String arg) {
+        process(Macro.getOptions());
+    }
+
+    /* Processes all deployments, returns false when a stage failed */
+    boolean process(String options) {
+        if (!readOptions(options)) {
+            return false;
+        }
+        try {
+            readJournal();
+            journal = new PrintWriter(new FileWriter(journalFile, true), true);
+        } catch (IOException e) {
+            IJ.log("Discus Batch: cannot use the journal " + journalFile + ": " + e.getMessage());
+            return false;
+        }
+
+        // Size of each deployment and memory needed by its stages
+        for (int i=0; i<deployments.size(); i++) {
+            estimateMemory(deployments.get(i));
+        }
+        // Largest deployments first, so that the last ones to finish are short
+        Collections.sort(deployments, new Comparator<Deployment>() {
+            public int compare(Deployment d1, Deployment d2) {
+                return d2.pixels > d1.pixels ? 1 : (d2.pixels < d1.pixels ? -1 : 0);
+            }
+        });
+        for (int i=0; i<deployments.size(); i++) {
+            Deployment d = deployments.get(i);
+            if (!isDone(d, STABILIZE)) stages++;
+            if (!isDone(d, TRACK)) stages++;
+        }
+        IJ.log("Discus Batch: " + deployments.size() + " deployments, " + stages + " stages to do, " + memory + " MB of memory");
+
+        int parallelism = Math.max(1, Math.min(threads, deployments.size()));
+        int innerThreads = Math.max(1, threads / parallelism);
+        budget = new Semaphore(memory, true);
+        ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            int n = 0;
+            public synchronized ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {};
+                // plugins only get their options on threads named this way
+                t.setName("Run$_batch-" + (++n));
+                return t;
+            }
+        }, null, false);
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (int i=0; i<deployments.size(); i++) {
+            final Deployment d = deployments.get(i);
+            final String stageOptions = pipelineOptions + " threads=" + innerThreads + " increment=" + d.increment;
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    return runStage(d, STABILIZE, d.stabilizeMemory, "stabilize " + stageOptions)
+                        && runStage(d, TRACK, d.trackMemory, "measure track " + stageOptions);
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        boolean ok = true;
+        try {
+            List<Future<Boolean>> results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                ok &= results.get(i).get().booleanValue();
+            }
+        } catch (InterruptedException e) {
+            ok = false;
+        } catch (ExecutionException e) {
+            IJ.log("Discus Batch: " + e.getCause());
+            ok = false;
+        } finally {
+            pool.shutdown();
+            journal.close();
+        }
+        IJ.log("Discus Batch: " + completed + " of " + stages + " stages done in " + IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) + " s");
+        return ok;
+    }
+
+
+    /* Runs a stage of the pipeline on a deployment, unless it is already done */
+    boolean runStage(Deployment d, String stage, int mb, String options) {
+        if (isDone(d, stage)) {
+            return true;
+        }
+        // a stage needing more than the whole budget runs alone
+        int permits = Math.max(1, Math.min(mb, memory));
+        try {
+            budget.acquire(permits);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        boolean ok;
+        long start = System.currentTimeMillis();
+        try {
+            ok = new Discus_Pipeline().process("deployment=[" + d.directory + "] " + options);
+        } catch (RuntimeException e) {
+            IJ.log("Discus Batch: " + stage + " " + d.directory + ": " + e);
+            ok = false;
+        } finally {
+            budget.release(permits);
+        }
+        if (!ok) {
+            IJ.log("Discus Batch: " + stage + " failed for " + d.directory);
+            return false;
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        synchronized (this) {
+            journal.println(stage + "\t" + d.directory + "\t" + IJ.d2s(seconds, 1));
+            done.add(stage + "\t" + d.directory);
+            completed++;
+            IJ.log("Discus Batch: " + stage + " " + d.directory + " in " + IJ.d2s(seconds, 1) + " s (" + completed + "/" + stages + ")");
+        }
+        return true;
+    }
+
+    synchronized boolean isDone(Deployment d, String stage) {
+        return done.contains(stage + "\t" + d.directory);
+    }
+
+
+    /* Stages completed by previous runs: lines of stage, deployment and duration */
+    void readJournal() throws IOException {
+        File file = new File(journalFile);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2) {
+                    done.add(fields[0] + "\t" + fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    /* Number of pixels of all images, and memory of each stage from the size of the first image */
+    void estimateMemory(Deployment d) {
+        File pics = new File(d.directory, "pics");
+        String[] names = Discus_Pipeline.listImages(pics);
+        if (names == null || names.length == 0) {
+            return;
+        }
+        long pixels = 0;
+        ImagePlus first = new Opener().openImage(pics.getPath(), names[0]);
+        if (first != null) {
+            pixels = (long) first.getWidth() * first.getHeight();
+        }
+        d.pixels = pixels * names.length;
+        d.stabilizeMemory = (int) (pixels * STABILIZE_BYTES_PER_PIXEL >> 20);
+        d.trackMemory = (int) (pixels * TRACK_BYTES_PER_PIXEL >> 20);
+    }
+
+
+    boolean readOptions(String options) {
+        journalFile = Macro.getValue(options, "journal", null);
+        String list = Macro.getValue(options, "list", null);
+        if (list == null || journalFile == null) {
+            IJ.log("Discus Batch: list=[file] and journal=[file] are required");
+            return false;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(list));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = Tools.split(line.trim());
+                    if (line.trim().length() == 0 || fields.length == 0) {
+                        continue;
+                    }
+                    Deployment d = new Deployment();
+                    d.directory = new File(fields[0]).getAbsolutePath();
+                    if (fields.length > 1) {
+                        d.increment = (int) Tools.parseDouble(fields[1], 1);
+                    }
+                    deployments.add(d);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            IJ.log("Discus Batch: cannot read the list " + list + ": " + e.getMessage());
+            return false;
+        }
+
+        threads = (int) Tools.parseDouble(Macro.getValue(options, "threads", null), threads);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        int available = (int) (Runtime.getRuntime().maxMemory() * 0.9 / (1 << 20));
+        memory = (int) Tools.parseDouble(Macro.getValue(options, "memory", null), available);
+        memory = Math.max(1, Math.min(memory, available));
+
+        String bounds = Macro.getValue(options, "aquarium", null);
+        if (bounds != null) {
+            pipelineOptions += " aquarium=" + bounds;
+        }
+        if ((" " + options + " ").indexOf(" mask ") >= 0) {
+            pipelineOptions += " mask";
+        }
+        pipelineOptions = pipelineOptions.trim();
+        return true;
+    }
+}
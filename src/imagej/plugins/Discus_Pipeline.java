@@ -0,0 +1,303 @@
+//
+//  DISCUS pipeline
+//
+//  Runs the automatic image processing steps of a deployment in a single
+//  Java process, without display: stabilization, measurement of the
+//  aquarium and tracking of the larva
+//
+//  (c) Copyright 2005-2011 J-O Irisson, C Paris
+//  GNU General Public License
+//  Read the file 'src/GNU_GPL.txt' for more information
+//
+//------------------------------------------------------------
+
+import ij.*;
+import ij.gui.*;
+import ij.io.Opener;
+import ij.macro.Interpreter;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+import ij.process.*;
+import ij.util.StringSorter;
+import ij.util.Tools;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+
+/**
+    Called by Discus_Batch, for each deployment, or directly with the
+    deployment directory and the steps to perform:
+        java -Djava.awt.headless=true -cp ij.jar:plugins Discus_Pipeline \
+            /path/to/deployment stabilize measure track \
+            aquarium=x,y,width,height threads=2 increment=10 mask
+
+    stabilize   stabilizes the images of pics/ with the Image Stabilizer, into
+                tmp/pics, and writes their decoded version in
+                tmp/frames.cache
+    measure     measures the centroid and perimeter of the aquarium, given by
+                its bounding box, on the first stabilized image, into
+                tmp/coord_aquarium.txt
+    track       tracks the larva with Threshold Stack, one image every
+                increment images, into tmp/larvae_track.txt
+
+    Results are written in the tmp directory of the deployment, for bb to
+    commit them. The images are decoded once: the steps following the
+    stabilization read them from its frame cache, in this process or in a
+    previous one (see Discus_Batch), or from the frame cache of the
+    deployment when it is up to date.
+
+    It can also be run as a command, with the deployment directory given as
+    "deployment=[/path/to/deployment]".
+*/
+public class Discus_Pipeline implements PlugIn {
+
+    String deployment;
+    boolean stabilize = false;
+    boolean measure = false;
+    boolean track = false;
+    // Bounding box of the aquarium: x, y, width, height
+    int[] aquariumBounds = {410, 62, 1114, 1114};
+    // Estimate the stabilization outside of the aquarium only
+    boolean mask = false;
+    // Number of threads used to stabilize images and to track; 0 uses all processors
+    int threads = 1;
+    // Track one image every increment images
+    int increment = 1;
+
+    public static void main(String[] args) {
+        // macro options are only given to plugins run from threads named this way
+        Thread.currentThread().setName("Run$_pipeline");
+        Interpreter.batchMode = true;
+
+        StringBuffer options = new StringBuffer();
+        for (int i=0; i<args.length; i++) {
+            // the first argument is the deployment directory
+            if (i == 0 && args[i].indexOf('=') < 0) {
+                options.append("deployment=[" + args[i] + "]");
+            } else {
+                options.append(" " + args[i]);
+            }
+        }
+        boolean ok = new Discus_Pipeline().process(options.toString());
+        System.exit(ok ? 0 : 1);
+    }
+
+    public void run(String arg) {
+        process(Macro.getOptions());
+    }
+
+    /* Performs the steps given in options, returns false when one of them fails */
+    boolean process(String options) {
+        readOptions(options);
+        if (deployment == null) {
+            IJ.log("Discus Pipeline: no deployment directory given");
+            return false;
+        }
+        File pics = new File(deployment, "pics");
+        File tmp = new File(deployment, "tmp");
+        tmp.mkdir();
+        File cache = new File(deployment, "frames.cache");
+        if (!isUpToDate(cache, pics)) {
+            cache = null;
+        }
+
+        long start = System.currentTimeMillis();
+        if (stabilize) {
+            IJ.log("Discus Pipeline: stabilize " + pics);
+            if (!stabilize(pics, tmp)) {
+                return false;
+            }
+        }
+        // the following steps work on the stabilized images, when they are waiting in tmp to be committed
+        File stabilized = new File(tmp, "frames.cache");
+        if (isUpToDate(stabilized, new File(tmp, "pics"))) {
+            pics = new File(tmp, "pics");
+            cache = stabilized;
+        }
+        if (measure) {
+            IJ.log("Discus Pipeline: measure the aquarium");
+            ImagePlus imp = open(pics, cache, 1);
+            boolean ok = measure(imp, new File(tmp, "coord_aquarium.txt"));
+            Frame_Cache.close(imp);
+            if (!ok) {
+                return false;
+            }
+        }
+        if (track) {
+            IJ.log("Discus Pipeline: track the larva");
+            ImagePlus imp = open(pics, cache, increment);
+            boolean ok = track(imp, new File(tmp, "larvae_track.txt"));
+            Frame_Cache.close(imp);
+            if (!ok) {
+                return false;
+            }
+        }
+        IJ.log("Discus Pipeline: done in " + IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) + " s");
+        return true;
+    }
+
+
+    /* Stabilizes the images of pics into tmp/pics, with their decoded version in tmp/frames.cache */
+    boolean stabilize(File pics, File tmp) {
+        ImagePlus imp = openImages(pics, 1);
+        if (imp == null) {
+            return false;
+        }
+        // the larva and the compass move independently of the frame: keep the walls of the aquarium, about 5% of its diameter, and its surroundings
+        if (mask) {
+            int[] b = aquariumBounds;
+            ShapeRoi all = new ShapeRoi(new Roi(0, 0, imp.getWidth(), imp.getHeight()));
+            imp.setRoi(all.not(new ShapeRoi(new OvalRoi(b[0]+0.05*b[2], b[1]+0.05*b[3], 0.9*b[2], 0.9*b[3]))));
+        }
+        File output = new File(tmp, "pics");
+        Image_Stabilizer stabilizer = new Image_Stabilizer();
+        stabilizer.setup("", imp);
+        Macro.setOptions("output=[" + output.getPath() + "] threads=" + threads + " cache=[" + new File(tmp, "frames.cache").getPath() + "]");
+        stabilizer.run(imp.getProcessor());
+        Macro.setOptions(null);
+
+        String[] written = listImages(output);
+        if (written == null || written.length != imp.getStackSize()) {
+            IJ.log("Discus Pipeline: the stabilization was interrupted");
+            return false;
+        }
+        return true;
+    }
+
+
+    /* Measures the aquarium on the first stabilized image, as the calibration of bb: centroid (y axis upwards) and perimeter of its selection, with the Measure command */
+    boolean measure(ImagePlus imp, File file) {
+        if (imp == null) {
+            return false;
+        }
+        int[] b = aquariumBounds;
+        imp.setSlice(1);
+        imp.setRoi(new OvalRoi(b[0], b[1], b[2], b[3]));
+        // the "invert" option of Set Measurements, for this image only rather than for all measurements of ImageJ
+        Calibration cal = imp.getCalibration();
+        cal.setInvertY(true);
+        imp.setCalibration(cal);
+        ResultsTable rt = new ResultsTable();
+        Analyzer analyzer = new Analyzer(imp, Measurements.CENTROID + Measurements.PERIMETER, rt);
+        analyzer.measure();
+        rt.setPrecision(3);
+        rt.showRowNumbers(true);
+        return save(rt, file);
+    }
+
+
+    /* Tracks the larva, as the Threshold Stack command */
+    boolean track(ImagePlus imp, File file) {
+        if (imp == null) {
+            return false;
+        }
+        int[] b = aquariumBounds;
+        Threshold_Stack tracker = new Threshold_Stack();
+        tracker.setup("", imp);
+        Macro.setOptions("aquarium=" + b[0] + "," + b[1] + "," + b[2] + "," + b[3] + " streaming threads=" + threads + " calibrate");
+        tracker.run(imp.getProcessor());
+        Macro.setOptions(null);
+
+        tracker.rt.showRowNumbers(true);
+        return save(tracker.rt, file);
+    }
+
+
+    boolean save(ResultsTable rt, File file) {
+        try {
+            rt.saveAs(file.getPath());
+            return true;
+        } catch (IOException e) {
+            IJ.log("Discus Pipeline: cannot write " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /* Opens the frame cache when there is one, the images of pics otherwise; close it with Frame_Cache.close */
+    ImagePlus open(File pics, File cache, int increment) {
+        if (cache != null && cache.exists()) {
+            return Frame_Cache.open(cache.getPath(), increment);
+        }
+        return openImages(pics, increment);
+    }
+
+
+    /* Opens one image every increment images of a directory as a virtual stack, in numerical order */
+    ImagePlus openImages(File dir, int increment) {
+        String[] names = listImages(dir);
+        if (names == null || names.length == 0) {
+            IJ.log("Discus Pipeline: no image in " + dir);
+            return null;
+        }
+        names = StringSorter.sortNumerically(names);
+        ImagePlus first = new Opener().openImage(dir.getPath(), names[0]);
+        if (first == null) {
+            IJ.log("Discus Pipeline: cannot open " + names[0]);
+            return null;
+        }
+        VirtualStack stack = new VirtualStack(first.getWidth(), first.getHeight(), null, dir.getPath() + File.separator);
+        for (int i=0; i<names.length; i+=Math.max(1, increment)) {
+            stack.addSlice(names[i]);
+        }
+        stack.setBitDepth(first.getBitDepth());
+        return new ImagePlus(dir.getName(), stack);
+    }
+
+
+    static String[] listImages(File dir) {
+        return dir.list(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.toLowerCase().endsWith(".jpg");
+            }
+        });
+    }
+
+
+    /* The cache is up to date when no image is newer than it */
+    boolean isUpToDate(File cache, File pics) {
+        if (!cache.exists()) {
+            return false;
+        }
+        String[] names = listImages(pics);
+        if (names == null) {
+            return false;
+        }
+        for (int i=0; i<names.length; i++) {
+            if (new File(pics, names[i]).lastModified() > cache.lastModified()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    void readOptions(String options) {
+        options = options == null ? "" : options;
+        deployment = Macro.getValue(options, "deployment", null);
+        String bounds = Macro.getValue(options, "aquarium", null);
+        if (bounds != null) {
+            String[] b = Tools.split(bounds, ",");
+            if (b.length == 4) {
+                for (int k=0; k<4; k++) {
+                    aquariumBounds[k] = (int) Tools.parseDouble(b[k], aquariumBounds[k]);
+                }
+            }
+        }
+        threads = (int) Tools.parseDouble(Macro.getValue(options, "threads", null), threads);
+        increment = (int) Tools.parseDouble(Macro.getValue(options, "increment", null), increment);
+        stabilize = getBoolean(options, "stabilize");
+        measure = getBoolean(options, "measure");
+        track = getBoolean(options, "track");
+        mask = getBoolean(options, "mask");
+    }
+
+    /* Checkboxes are recorded as a single keyword in macro options */
+    boolean getBoolean(String options, String key) {
+        return (" " + options + " ").indexOf(" " + key + " ") >= 0;
+    }
+}
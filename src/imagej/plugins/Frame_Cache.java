@@ -0,0 +1,412 @@
+//
+//  Frame cache
+//
+//  Keeps the decoded frames of a deployment in a single raw file, so that
+//  the steps following the stabilization read them without decoding JPEGs
+//
+//  (c) Copyright 2005-2011 J-O Irisson, C Paris
+//  GNU General Public License
+//  Read the file 'src/GNU_GPL.txt' for more information
+//
+//------------------------------------------------------------
+
+import ij.*;
+import ij.process.*;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+    The cache is a header followed by frames of a fixed size, so that frame n
+    is found at HEADER + (n-1) * stride and read through a memory mapping of
+    its region of the file:
+
+        header  "DISCUSFC", version, width, height, bit depth, number of
+                frames, size of the label of each frame (little-endian ints),
+                padded to HEADER bytes
+        frame   written flag, label length, label (UTF-8, padded to the
+                label size), pixels (1, 2 or 4 bytes per pixel, RGB pixels
+                as packed ints)
+
+    Frames can be written in any order and from several threads, and a cache
+    can be extended with new frames, keeping the ones already written.
+
+    As a command, it opens a cache as a virtual stack:
+        run("Frame Cache", "open=[/path/to/frames.cache] increment=10");
+    where increment keeps one frame every increment frames. The file is
+    closed with the image; an image that is never shown is closed with
+    Frame_Cache.close(imp). It also saves the current image into a cache,
+    one slice at a time, resized to scale percent of its size:
+        run("Frame Cache", "save=[/path/to/proxy.cache] scale=50");
+    so that a reduced copy of a long virtual stack never has to fit in
+    memory.
+*/
+public class Frame_Cache implements PlugIn {
+
+    static final byte[] MAGIC = {'D', 'I', 'S', 'C', 'U', 'S', 'F', 'C'};
+    static final int VERSION = 1;
+    static final int HEADER = 64;
+    static final int LABEL = 256;
+
+    public void run(String arg) {
+        String options = Macro.getOptions();
+        options = options == null ? "" : options;
+        String savePath = Macro.getValue(options, "save", null);
+        if (savePath != null) {
+            double scale = Tools.parseDouble(Macro.getValue(options, "scale", null), 100);
+            save(IJ.getImage(), savePath, scale);
+            return;
+        }
+        String path = Macro.getValue(options, "open", arg);
+        if (path == null || path.length() == 0) {
+            IJ.error("Frame Cache", "No cache to open; use open=[path]");
+            return;
+        }
+        int increment = (int) Tools.parseDouble(Macro.getValue(options, "increment", null), 1);
+        ImagePlus imp = open(path, increment);
+        if (imp != null) {
+            imp.show();
+        }
+    }
+
+
+    /* Opens a cache as a virtual stack, keeping one frame every increment frames */
+    static ImagePlus open(String path, int increment) {
+        try {
+            Reader reader = new Reader(path, increment);
+            reader.imp = new ImagePlus(new File(path).getName(), reader);
+            ImagePlus.addImageListener(reader);
+            return reader.imp;
+        } catch (IOException e) {
+            IJ.error("Frame Cache", "Cannot open " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /* Saves the slices of imp, resized to scale percent, into a new cache; written next to it first, so that an interrupted save leaves no cache */
+    static boolean save(ImagePlus imp, String path, double scale) {
+        ImageStack stack = imp.getStack();
+        int nFrames = stack.getSize();
+        int width = (int) (imp.getWidth() * scale / 100);
+        int height = (int) (imp.getHeight() * scale / 100);
+        File tmp = new File(path + ".tmp");
+        Writer writer = null;
+        try {
+            // the bit depth of a virtual stack is only known once a slice is read
+            ImageProcessor ip = stack.getProcessor(1);
+            writer = new Writer(tmp.getPath(), width, height, ip.getBitDepth(), nFrames);
+            for (int n=1; n<=nFrames; n++) {
+                IJ.showProgress(n, nFrames);
+                if (n > 1) {
+                    ip = stack.getProcessor(n);
+                }
+                if (ip.getWidth() != width || ip.getHeight() != height) {
+                    ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+                    ip = ip.resize(width, height, true);
+                }
+                writer.put(n, stack.getSliceLabel(n), ip);
+            }
+            writer.close();
+            writer = null;
+            File f = new File(path);
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("cannot rename " + tmp.getName());
+            }
+            return true;
+        } catch (IOException e) {
+            IJ.error("Frame Cache", "Cannot save " + path + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // already failing
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+
+    /* Closes imp and, when it reads a cache, the file: ImageJ only tells the listeners of the images shown in a window that they are closed */
+    static void close(ImagePlus imp) {
+        if (imp == null) {
+            return;
+        }
+        if (imp.getStack() instanceof Reader) {
+            ((Reader) imp.getStack()).close();
+        }
+        imp.close();
+    }
+
+
+    static int bytesPerPixel(int bitDepth) {
+        switch (bitDepth) {
+            case 8: return 1;
+            case 16: return 2;
+            default: return 4;
+        }
+    }
+
+
+    /* Maps the first size bytes of frame n (from 1) of the file */
+    static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, int n, long stride, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, HEADER + (n - 1) * stride, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+
+    /* Writes the frames of a stack into a new cache */
+    static class Writer {
+        RandomAccessFile file;
+        FileChannel channel;
+        int width;
+        int height;
+        int bitDepth;
+        int nFrames;
+        long stride;
+
+        Writer(String path, int width, int height, int bitDepth, int nFrames) throws IOException {
+            this(path, width, height, bitDepth, nFrames, false);
+        }
+
+        /* With keep, the frames of an existing cache of images of the same size are kept and the cache is extended to nFrames, e.g. when new images are stabilized after the previous ones */
+        Writer(String path, int width, int height, int bitDepth, int nFrames, boolean keep) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.nFrames = nFrames;
+            stride = LABEL + (long) width * height * bytesPerPixel(bitDepth);
+
+            File f = new File(path);
+            if (!keep || !fits(path, width, height, bitDepth, nFrames)) {
+                f.delete();
+            }
+            file = new RandomAccessFile(f, "rw");
+            file.setLength(HEADER + nFrames * stride);
+            channel = file.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(bitDepth);
+            header.putInt(nFrames);
+            header.putInt(LABEL);
+            header.rewind();
+            channel.write(header, 0);
+        }
+
+        /* Whether an existing cache holds images of this size and at most nFrames of them */
+        static boolean fits(String path, int width, int height, int bitDepth, int nFrames) {
+            if (!new File(path).exists()) {
+                return false;
+            }
+            try {
+                int[] header = Reader.readHeader(path);
+                return header[0] == width && header[1] == height && header[2] == bitDepth && header[3] <= nFrames;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /* Stores the pixels of ip as frame n (from 1) */
+        void put(int n, String label, ImageProcessor ip) throws IOException {
+            if (n < 1 || n > nFrames || ip.getWidth() != width || ip.getHeight() != height) {
+                throw new IOException("Frame " + n + " does not fit in the cache");
+            }
+            MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, n, stride, stride);
+
+            // pixels first, then the flag, so that a frame is never marked as written before it is
+            buffer.position(LABEL);
+            switch (bitDepth) {
+                case 8:
+                    buffer.put((byte[]) ip.getPixels());
+                    break;
+                case 16:
+                    buffer.asShortBuffer().put((short[]) ip.getPixels());
+                    break;
+                case 24:
+                    buffer.asIntBuffer().put((int[]) ip.getPixels());
+                    break;
+                default:
+                    buffer.asFloatBuffer().put((float[]) ip.getPixels());
+            }
+
+            byte[] text = label == null ? new byte[0] : label.getBytes("UTF-8");
+            int length = Math.min(text.length, LABEL - 8);
+            buffer.position(4);
+            buffer.putInt(length);
+            buffer.put(text, 0, length);
+            buffer.putInt(0, 1);
+        }
+
+        void close() throws IOException {
+            channel.force(false);
+            file.close();
+        }
+    }
+
+
+    /* Virtual stack reading the frames of a cache, until the image showing it is closed */
+    static class Reader extends VirtualStack implements ImageListener {
+        RandomAccessFile file;
+        FileChannel channel;
+        ImagePlus imp;
+        int bitDepth;
+        int nFrames;
+        int increment;
+        long stride;
+
+        Reader(String path, int increment) throws IOException {
+            this(path, increment, readHeader(path));
+        }
+
+        private Reader(String path, int increment, int[] header) throws IOException {
+            super(header[0], header[1], null, null);
+            bitDepth = header[2];
+            nFrames = header[3];
+            this.increment = Math.max(1, increment);
+            stride = LABEL + (long) header[0] * header[1] * bytesPerPixel(bitDepth);
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            if (channel.size() < HEADER + nFrames * stride) {
+                file.close();
+                throw new IOException("the cache is truncated");
+            }
+            setBitDepth(bitDepth);
+        }
+
+        /* Width, height, bit depth and number of frames of a cache */
+        static int[] readHeader(String path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            try {
+                byte[] bytes = new byte[HEADER];
+                file.readFully(bytes);
+                ByteBuffer header = ByteBuffer.wrap(bytes);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                for (int k=0; k<MAGIC.length; k++) {
+                    if (header.get() != MAGIC[k]) {
+                        throw new IOException("not a frame cache");
+                    }
+                }
+                if (header.getInt() != VERSION) {
+                    throw new IOException("unknown version");
+                }
+                int[] values = {header.getInt(), header.getInt(), header.getInt(), header.getInt()};
+                if (header.getInt() != LABEL) {
+                    throw new IOException("unknown label size");
+                }
+                return values;
+            } finally {
+                file.close();
+            }
+        }
+
+        /* Frame of the cache shown as slice n */
+        int frame(int n) {
+            return 1 + (n - 1) * increment;
+        }
+
+        public ImageProcessor getProcessor(int n) {
+            int width = getWidth();
+            int height = getHeight();
+            ImageProcessor ip;
+            switch (bitDepth) {
+                case 8: ip = new ByteProcessor(width, height); break;
+                case 16: ip = new ShortProcessor(width, height); break;
+                case 24: ip = new ColorProcessor(width, height); break;
+                default: ip = new FloatProcessor(width, height);
+            }
+            try {
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, frame(n), stride, stride);
+                if (buffer.getInt(0) == 0) {
+                    // the stabilization was interrupted
+                    IJ.log("Frame Cache: frame " + frame(n) + " was not written");
+                    return ip;
+                }
+                buffer.position(LABEL);
+                switch (bitDepth) {
+                    case 8: buffer.get((byte[]) ip.getPixels()); break;
+                    case 16: buffer.asShortBuffer().get((short[]) ip.getPixels()); break;
+                    case 24: buffer.asIntBuffer().get((int[]) ip.getPixels()); break;
+                    default: buffer.asFloatBuffer().get((float[]) ip.getPixels());
+                }
+            } catch (IOException e) {
+                IJ.log("Frame Cache: cannot read frame " + frame(n) + ": " + e.getMessage());
+            }
+            return ip;
+        }
+
+        public Object getPixels(int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        public String getSliceLabel(int n) {
+            try {
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, frame(n), stride, LABEL);
+                if (buffer.getInt(0) == 0) {
+                    return null;
+                }
+                byte[] text = new byte[Math.min(buffer.getInt(4), LABEL - 8)];
+                buffer.position(8);
+                buffer.get(text);
+                return new String(text, "UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /* The label is the name of the image the frame comes from */
+        public String getFileName(int n) {
+            return getSliceLabel(n);
+        }
+
+        public int getSize() {
+            return (nFrames + increment - 1) / increment;
+        }
+
+        public int size() {
+            return getSize();
+        }
+
+        public void deleteSlice(int n) {
+            // frames cannot be removed from the cache
+        }
+
+        /* Closes the file, which is otherwise kept open, and locked on Windows */
+        void close() {
+            ImagePlus.removeImageListener(this);
+            try {
+                file.close();
+            } catch (IOException e) {
+                IJ.log("Frame Cache: cannot close the cache: " + e.getMessage());
+            }
+        }
+
+        public void imageOpened(ImagePlus imp) {
+        }
+
+        public void imageClosed(ImagePlus imp) {
+            if (imp == this.imp) {
+                close();
+            }
+        }
+
+        public void imageUpdated(ImagePlus imp) {
+        }
+    }
+}
@@ -64,8 +64,25 @@ FITNESS FOR ANY PARTICULAR PURPOSE.
 
 
 import java.lang.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
 import java.awt.event.*;
 import ij.*;
 import ij.gui.*;
@@ -73,6 +90,7 @@ import ij.process.*;
 import ij.plugin.filter.*;
 import ij.plugin.frame.Editor;
 import ij.io.*;
+import ij.util.Tools;
 
 
 
@@ -80,6 +98,39 @@ public class Image_Stabilizer implements PlugInFilter {
 
     static final int TRANSLATION = 0;
     static final int AFFINE = 1;
+    static final int PHASE_CORRELATION = 2;
+    static final int FEATURES = 3;
+
+    static final int NO_PREDICTION = 0;
+    static final int PREVIOUS_SLICE = 1;
+    static final int CONSTANT_VELOCITY = 2;
+
+    /* keypoints detected per image, half-size of the patches they are
+       matched with, radius of the window of the corner detector */
+    static final int MAX_KEYPOINTS = 256;
+    static final int PATCH_RADIUS = 4;
+    static final int CORNER_RADIUS = 2;
+    /* largest size, in pixels, of the level of the pyramid phase correlation
+       runs on, and of the window on which it refines that estimate at full
+       resolution */
+    static final int PHASE_SIZE = 256;
+    static final int PHASE_WINDOW = 256;
+    /* fraction of that window the mask must cover, below which Lucas-Kanade
+       refines the estimate instead, and size in pixels of the blocks the
+       mask is summed over to place the window */
+    static final double MIN_PHASE_COVERAGE = 0.5;
+    static final int MASK_BLOCK = 8;
+    /* random samples of RANSAC, distance (in pixels) below which a match
+       fits a transformation, and number of such matches needed to accept it */
+    static final int RANSAC_ITERATIONS = 500;
+    static final double RANSAC_THRESHOLD = 1.5;
+    static final int MIN_INLIERS = 6;
+    /* step, in pixels at full resolution, below which the coarse levels of
+       the pyramid stop iterating from a prediction */
+    static final double PREDICTION_STEP = 0.5;
+
+    /* version of the file format of the state of the stabilization */
+    static final int STATE_VERSION = 1;
 
     ImagePlus  imp = null;
     ImageStack stack = null;
@@ -92,6 +143,57 @@ public class Image_Stabilizer implements PlugInFilter {
     int        maxIter = 200;
     double     tol = 1e-7;
     double     alpha = 0.9;
+    boolean    refine = false;
+    int        prediction = NO_PREDICTION;
+    int        threads = 1;
+    int        window = 0;
+    int        prefetch = 4;
+    int        writers = 1;
+    int        jpegQuality = 95;
+
+    /* file where the transformation of every slice is saved, and file from
+       which they are read back in replay mode */
+    String      transformFile = null;
+    String      replayFile = null;
+    PrintWriter transformWriter = null;
+
+    /* pixels the transformations are estimated on (the selection of the
+       image, if any) */
+    ImageProcessor mask = null;
+
+    /* pixels of the mask in the blocks of MASK_BLOCK pixels above and to
+       the left of each block corner (a summed-area table), one row of
+       maskSumsWidth corners after the other */
+    int[] maskSums = null;
+    int   maskSumsWidth = 0;
+
+    /* Gauss-Newton iterations and estimated slices, over the whole stack */
+    long       totalIterations = 0;
+    int        totalSlices = 0;
+
+    /* encoder threads writing the stabilized images of a virtual stack */
+    ExecutorService writerPool = null;
+
+    /* threads warping the rows of a slice, when the slices are warped one
+       at a time (see forRuns) */
+    ExecutorService warpPool = null;
+
+    /* raw file where the stabilized images of a virtual stack are also
+       written, for the following steps to read them without decoding JPEGs
+       (see Frame_Cache) */
+    String             cacheFile = null;
+    Frame_Cache.Writer cacheWriter = null;
+
+    /* incremental mode: the template and the last transformations are saved
+       at the end of a run, so that a later run on the same directory, after
+       new images were added to it, only stabilizes these (see readState) */
+    boolean    incremental = false;
+    String     stateFile = null;
+    State      lastState = null;
+
+    /* loops over the pixels, vectorized when possible (see Kernels) */
+    static final Kernels KERNELS = Kernels.create();
+    Kernels    kernels = KERNELS;
 
     /* transformation coefficient Log */
     boolean    logEnabled = false;
@@ -108,9 +210,8 @@ public class Image_Stabilizer implements PlugInFilter {
         stack = imp.getStack();
         int stackSize = stack.getSize();
 
-        // Get output directory as argument
-        outputDir = Macro.getOptions();
-        outputDir = outputDir.trim();
+        // Get output directory and options as argument
+        readOptions(Macro.getOptions());
         // System.out.println(outputDir);
 
         if (stack.isVirtual()) {
@@ -147,6 +248,81 @@ public class Image_Stabilizer implements PlugInFilter {
             }
             stackVirtual = true;
             outputNewStack = false;
+
+            // By default, save the transformations next to the output directory
+            if (transformFile == null && replayFile == null)
+                transformFile = new File(file.getParentFile(),
+                    "stabilization.csv").getPath();
+            // and the state of the stabilization as well
+            if (incremental && stateFile == null)
+                stateFile = new File(file.getParentFile(),
+                    "stabilization.state").getPath();
+        }
+
+        // Resume after the slices stabilized by a previous run, if any
+        State state = null;
+        if (incremental && stackVirtual && replayFile == null) {
+            state = readState(stateFile);
+            if (state != null)
+                IJ.log("Image Stabilizer: " + state.slice + " slices already stabilized, " +
+                    (stackSize - state.slice) + " new");
+        }
+        else
+            stateFile = null;
+
+        if (cacheFile != null && stackVirtual) {
+            try {
+                cacheWriter = new Frame_Cache.Writer(cacheFile, stack.getWidth(),
+                    stack.getHeight(), imp.getBitDepth(), stackSize, state != null);
+            }
+            catch (IOException e) {
+                IJ.error("Could not create the frame cache " + cacheFile);
+                return;
+            }
+        }
+
+        if (replayFile != null) {
+            double[][][] wps = readTransforms(replayFile);
+            if (wps == null)
+                return;
+            if (stackVirtual && writers > 0)
+                writerPool = createWriterPool(writers);
+            try {
+                replay(wps);
+            }
+            finally {
+                if (writerPool != null)
+                    closeWriterPool();
+                closeCache();
+            }
+            return;
+        }
+
+        // Estimate the transformations on the selected area only.
+        //   e.g. the walls of the aquarium, leaving out what moves inside.
+        Roi roi = imp.getRoi();
+        if (roi != null && roi.isArea()) {
+            mask = new ByteProcessor(stack.getWidth(), stack.getHeight());
+            mask.setValue(255);
+            mask.fill(roi);
+            sumMask();
+        }
+
+        if (transformFile != null) {
+            // the transformations of the new slices follow the previous ones
+            boolean append = state != null && new File(transformFile).exists();
+            try {
+                transformWriter = new PrintWriter(new BufferedWriter(
+                    new FileWriter(transformFile, append)));
+            }
+            catch (IOException e) {
+                closeCache();
+                IJ.error("Could not write the transformations to " + transformFile);
+                return;
+            }
+            if (!append)
+                transformWriter.println(isAffine() ?
+                    "slice,a00,a01,a02,a10,a11,a12" : "slice,dx,dy");
         }
 
         // if (!showDialog(ip))
@@ -155,18 +331,43 @@ public class Image_Stabilizer implements PlugInFilter {
         // Use first slice as the reference
         // int current = imp.getCurrentSlice();
         int current = 1;
-        ImageProcessor ipRef = stack.getProcessor(current);
+        ImageProcessor ipRef = state == null ? stack.getProcessor(current) : null;
 
         // if (outputNewStack)
         //     stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
 
+        if (stackVirtual && writers > 0)
+            writerPool = createWriterPool(writers);
+
         showProgress(0.0);
-        if (!IJ.escapePressed()) {
-            process(ipRef, current - 1, 1, -1, 1);
-            if (!IJ.escapePressed())
-                process(ipRef, current, stackSize, 1, current);
+        try {
+            if (state != null)
+                // the last slice stabilized is not stored again
+                process(null, state.ipFloatRef, state.predictor,
+                        state.slice, stackSize, 1, state.slice);
+            else if (!IJ.escapePressed()) {
+                process(ipRef, current - 1, 1, -1, 1);
+                if (!IJ.escapePressed())
+                    process(ipRef, current, stackSize, 1, current);
+            }
+        }
+        finally {
+            if (writerPool != null)
+                closeWriterPool();
+            closeCache();
+            if (transformWriter != null) {
+                transformWriter.close();
+                transformWriter = null;
+            }
+            // once the images and transformations it refers to are written
+            writeState();
         }
 
+        if (totalIterations > 0)
+            IJ.log("Image Stabilizer: " + totalSlices + " slices, " +
+                IJ.d2s(totalIterations / (double)Math.max(totalSlices, 1), 1) +
+                " iterations per slice on average");
+
         // if (!outputNewStack) // in-place processing
         //     imp.updateAndDraw();
         // else if (stackOut.getSize() > 0) {
@@ -181,24 +382,124 @@ public class Image_Stabilizer implements PlugInFilter {
     }
 
 
+    /**
+        Read the options given as argument, as "key=value" pairs named after
+        the fields of the dialog (e.g. "output=[/path/to/dir] threads=4").
+        For backward compatibility, an argument without an "output" key is
+        considered to be the output directory as a whole.
+    */
+    void readOptions(String options) {
+        options = options == null ? "" : options.trim();
+        outputDir = Macro.getValue(options, "output", null);
+        if (outputDir == null) {
+            outputDir = options;
+            return;
+        }
+
+        transform = getTransform(Macro.getValue(options, "transformation",
+            getTransformName(transform)));
+        pyramidLevel = (int)Tools.parseDouble(Macro.getValue(options,
+            "maximum_pyramid_levels", null), pyramidLevel);
+        alpha = Tools.parseDouble(Macro.getValue(options,
+            "template_update_coefficient", null), alpha);
+        maxIter = (int)Tools.parseDouble(Macro.getValue(options,
+            "maximum_iterations", null), maxIter);
+        tol = Tools.parseDouble(Macro.getValue(options,
+            "error_tolerance", null), tol);
+        refine = getBoolean(options, "refine_with_lucas-kanade");
+        prediction = getPrediction(Macro.getValue(options, "motion_prediction",
+            getPredictionName(prediction)));
+
+        // Number of worker threads; 0 uses all available processors
+        threads = (int)Tools.parseDouble(Macro.getValue(options,
+            "threads", null), threads);
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        // Number of slices estimated against the same template when multi-threaded
+        window = (int)Tools.parseDouble(Macro.getValue(options,
+            "window", null), window);
+        // Number of slices of a virtual stack read ahead of the estimation
+        prefetch = (int)Tools.parseDouble(Macro.getValue(options,
+            "prefetch", null), prefetch);
+        // Number of threads writing the stabilized images; 0 writes them
+        // on the stabilization thread
+        writers = (int)Tools.parseDouble(Macro.getValue(options,
+            "writers", null), writers);
+        jpegQuality = (int)Tools.parseDouble(Macro.getValue(options,
+            "jpeg_quality", null), jpegQuality);
+
+        // Sidecar file of the transformations (see writeTransform)
+        transformFile = Macro.getValue(options, "transforms", null);
+        // Apply the transformations of a sidecar file instead of estimating them
+        replayFile = Macro.getValue(options, "apply_transforms", null);
+        // Raw file where the stabilized images are also written (see Frame_Cache)
+        cacheFile = Macro.getValue(options, "cache", null);
+        // Stabilize only the slices added since the previous run (see readState)
+        incremental = getBoolean(options, "incremental");
+        stateFile = Macro.getValue(options, "state", null);
+    }
+
+
+    /* Checkboxes are recorded as a single keyword in macro options */
+    boolean getBoolean(String options, String key) {
+        return (" " + options + " ").indexOf(" " + key + " ") >= 0;
+    }
+
+
     int getTransform(String name) {
         int xform = TRANSLATION;
         if (name.compareTo("Affine") == 0)
             xform = AFFINE;
+        else if (name.compareTo("Phase Correlation") == 0)
+            xform = PHASE_CORRELATION;
+        else if (name.compareTo("Feature Matching") == 0)
+            xform = FEATURES;
         return xform;
     }
 
 
+    /* Whether the transformations are affine rather than translations */
+    boolean isAffine() {
+        return transform == AFFINE || transform == FEATURES;
+    }
+
+
     String getTransformName(int xform) {
         String name = "Translation";
         if (xform == AFFINE)
             name = "Affine";
+        else if (xform == PHASE_CORRELATION)
+            name = "Phase Correlation";
+        else if (xform == FEATURES)
+            name = "Feature Matching";
+        return name;
+    }
+
+
+    int getPrediction(String name) {
+        int pred = NO_PREDICTION;
+        if (name.compareTo("Previous Slice") == 0)
+            pred = PREVIOUS_SLICE;
+        else if (name.compareTo("Constant Velocity") == 0)
+            pred = CONSTANT_VELOCITY;
+        return pred;
+    }
+
+
+    String getPredictionName(int pred) {
+        String name = "None";
+        if (pred == PREVIOUS_SLICE)
+            name = "Previous Slice";
+        else if (pred == CONSTANT_VELOCITY)
+            name = "Constant Velocity";
         return name;
     }
 
 
     boolean showDialog(ImageProcessor ip) {
-        final String[] transformNames = { "Translation", "Affine" };
+        final String[] transformNames = { "Translation", "Affine", "Phase Correlation",
+                                          "Feature Matching" };
+        final String[] predictionNames = { "None", "Previous Slice", "Constant Velocity" };
         final String[] pyramidLevelNames = { "0", "1", "2", "3", "4" };
         GenericDialog gd = new GenericDialog("Image Stabilizer");
         gd.addChoice("Transformation:", transformNames, getTransformName(transform));
@@ -206,6 +507,8 @@ public class Image_Stabilizer implements PlugInFilter {
         gd.addNumericField("Template_Update_Coefficient (0..1):", alpha, 2, 11, null);
         gd.addNumericField("Maximum_Iterations:", maxIter, 0, 11, null);
         gd.addNumericField("Error_Tolerance:", tol, 7, 11, null);
+        gd.addCheckbox("Refine_with_Lucas-Kanade", refine);
+        gd.addChoice("Motion_Prediction:", predictionNames, getPredictionName(prediction));
         gd.addCheckbox("Log_Transformation_Coefficients", false);
         if (!stackVirtual)
             gd.addCheckbox("Output_to_a_New_Stack", false);
@@ -219,6 +522,8 @@ public class Image_Stabilizer implements PlugInFilter {
         alpha = gd.getNextNumber();
         maxIter = (int)gd.getNextNumber();
         tol = gd.getNextNumber();
+        refine = gd.getNextBoolean();
+        prediction = getPrediction(gd.getNextChoice());
 
         if (logEnabled = gd.getNextBoolean()){
             logEditor = new Editor();
@@ -247,10 +552,6 @@ public class Image_Stabilizer implements PlugInFilter {
                  int            interval,
                  int            tick)
     {
-        int width = ipRef.getWidth();
-        int height = ipRef.getHeight();
-        int stackSize = stack.getSize();
-
         ImageProcessor ipFloatRef = null;
 
         if (ipRef instanceof FloatProcessor)
@@ -258,515 +559,1469 @@ public class Image_Stabilizer implements PlugInFilter {
         else
             ipFloatRef = ipRef.convertToFloat();
 
-        // workspaces
-        ImageProcessor[] ipPyramid = { null, null, null, null, null };
-        ImageProcessor[] ipRefPyramid = { null, null, null, null, null };
-
-        ipPyramid[0] = new FloatProcessor(width, height);
-        ipRefPyramid[0] = new FloatProcessor(width, height);
-
-        if (pyramidLevel >= 1 && width >= 100 && height >= 100) {
-            int width2 = width / 2;
-            int height2 = height / 2;
-            ipPyramid[1] = new FloatProcessor(width2, height2);
-            ipRefPyramid[1] = new FloatProcessor(width2, height2);
-            if (pyramidLevel >= 2 && width >= 200 && height >= 200) {
-                int width4 = width / 4;
-                int height4 = height / 4;
-                ipPyramid[2] = new FloatProcessor(width4, height4);
-                ipRefPyramid[2] = new FloatProcessor(width4, height4);
-                if (pyramidLevel >= 3 && width >= 400 && height >= 400) {
-                    int width8 = width / 8;
-                    int height8 = height / 8;
-                    ipPyramid[3] = new FloatProcessor(width8, height8);
-                    ipRefPyramid[3] = new FloatProcessor(width8, height8);
-                    if (pyramidLevel >= 4 && width >= 800 && height >= 800) {
-                        int width16 = width / 16;
-                        int height16 = height / 16;
-                        ipPyramid[4] = new FloatProcessor(width16, height16);
-                        ipRefPyramid[4] = new FloatProcessor(width16, height16);
-                    }
-                }
-            }
-        }
+        process(ipRef, ipFloatRef, createPredictor(firstSlice, interval),
+                firstSlice, lastSlice, interval, tick);
+    }
 
-        for (int slice = firstSlice; interval * slice <= interval * lastSlice; slice += interval) {
-            // if (IJ.escapePressed() || imp.getWindow().isClosed())
-            //     break;
 
-            String label = stack.getSliceLabel(slice);
-            if (slice == firstSlice && interval > 0) {
-                IJ.showStatus("Skipping " + slice + "/" + stackSize + " ...");
-                
-                if (transform == TRANSLATION){
-                   if (logEditor != null) {
-                       logEditor.append(
-                           Integer.toString(slice) + "," + 
-                           Integer.toString(interval) + "," + 
-                           "0,0\n"
-                       );
-                   }
-                }
-                else {
-                   if (logEditor != null) {
-                       logEditor.append(
-                           Integer.toString(slice) + "," + 
-                           Integer.toString(interval) + "," + 
-                           "0,0,0,0,0,0\n"
-                       );
-                   }
-                }
-                
-                if (stackOut != null)
-                    stackOut.addSlice(label, ipRef);
-                else {
-                    if (!stackVirtual)
-                        stack.setPixels(ipRef.getPixels(), slice);
-                    else
-                        saveImage(ipRef, slice);
-                }
-                showProgress(tick / (double)stackSize);
-                ++tick;
-            }
-            else {
-                IJ.showStatus("Stabilizing " + slice + "/" + stackSize + 
-                    " ... (Press 'ESC' to Cancel)");
+    /**
+        Stabilizes the slices following firstSlice against the template
+        ipFloatRef. firstSlice is stored as is, unless ipRef is null: it was
+        stored by a previous run, whose template and predictor are given
+        (see readState).
+    */
+    void process(ImageProcessor  ipRef,
+                 ImageProcessor  ipFloatRef,
+                 MotionPredictor predictor,
+                 int             firstSlice,
+                 int             lastSlice,
+                 int             interval,
+                 int             tick)
+    {
+        if (threads > 1) {
+            processParallel(ipRef, ipFloatRef, predictor,
+                            firstSlice, lastSlice, interval, tick);
+            return;
+        }
 
-                ImageProcessor ip = stack.getProcessor(slice);
-                ImageProcessor ipFloat = ip.convertToFloat();
-
-                double[][] wp = null;
-
-                if (transform == TRANSLATION){
-                    wp = estimateTranslation(
-                        ipFloat, ipFloatRef, ipPyramid, ipRefPyramid, maxIter, tol);
-                    
-                    if (logEnabled) {
-                        logEditor.append(
-                            Integer.toString(slice) + "," + Integer.toString(interval) + "," +
-                            Double.toString(wp[0][0]) + "," +
-                            Double.toString(wp[1][0]) +
-                            "\n");
-                    }
-                }
-                else {
-                    wp = estimateAffine(
-                        ipFloat, ipFloatRef, ipPyramid, ipRefPyramid, maxIter, tol);
-                    
-                    if (logEnabled) {
-                        logEditor.append(
-                            Integer.toString(slice) + "," + Integer.toString(interval) + "," +
-                            Double.toString(wp[0][0]) + "," +
-                            Double.toString(wp[0][1]) + "," +
-                            Double.toString(wp[0][2]) + "," +
-                            Double.toString(wp[1][0]) + "," +
-                            Double.toString(wp[1][1]) + "," +
-                            Double.toString(wp[1][2]) + "," +
-                            "\n");
-                    }
-                }
-                
-                FloatProcessor ipFloatOut = new FloatProcessor(width, height);
-                
-                if (transform == TRANSLATION)
-                    warpTranslation(ipFloatOut, ipFloat, wp);
-                else
-                    warpAffine(ipFloatOut, ipFloat, wp);
+        int width = ipFloatRef.getWidth();
+        int height = ipFloatRef.getHeight();
+        int stackSize = stack.getSize();
 
-                if (ip instanceof ColorProcessor) {
-                    ColorProcessor ipColorOut = new ColorProcessor(width, height);
+        // workspaces
+        Workspace ws = createWorkspace(width, height);
 
-                    if (transform == TRANSLATION)
-                        warpColorTranslation(ipColorOut, (ColorProcessor)ip, wp);
-                    else
-                        warpColorAffine(ipColorOut, (ColorProcessor)ip, wp);
+        // the reference slice is not read again
+        SliceReader reader = createReader(
+            interval > 0 ? firstSlice + interval : firstSlice,
+            lastSlice, interval, 1);
 
-                    if (stackOut == null) {
-                        if (!stackVirtual)
-                            stack.setPixels(ipColorOut.getPixels(), slice);
-                        else
-                            saveImage(ipColorOut, slice);
-                    }
-                    else if (interval < 0)
-                        stackOut.addSlice(label, ipColorOut, 0);
-                    else
-                        stackOut.addSlice(label, ipColorOut);
+        try {
+            for (int slice = firstSlice; interval * slice <= interval * lastSlice; slice += interval) {
+                // if (IJ.escapePressed() || imp.getWindow().isClosed())
+                //     break;
+
+                String label = stack.getSliceLabel(slice);
+                if (slice == firstSlice && interval > 0) {
+                    IJ.showStatus("Skipping " + slice + "/" + stackSize + " ...");
+                    if (ipRef != null)
+                        storeReferenceSlice(ipRef, label, slice, interval);
+                    showProgress(tick / (double)stackSize);
+                    ++tick;
                 }
                 else {
-                    if (ip instanceof ByteProcessor) {
-                        ImageProcessor ipByteOut = ipFloatOut.convertToByte(false);
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipByteOut.getPixels(), slice);
-                            else
-                                saveImage(ipByteOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipByteOut, 0);
-                        else
-                            stackOut.addSlice(label, ipByteOut);
-                    }
-                    else if (ip instanceof ShortProcessor) {
-                        ImageProcessor ipShortOut = ipFloatOut.convertToShort(false);
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipShortOut.getPixels(), slice);
-                            else
-                                saveImage(ipShortOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipShortOut, 0);
-                        else
-                            stackOut.addSlice(label, ipShortOut);
-                    }
-                    else {
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipFloatOut.getPixels(), slice);
-                            else
-                                saveImage(ipFloatOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipFloatOut, 0);
-                        else
-                            stackOut.addSlice(label, ipFloatOut);
-                    }
-                }
+                    IJ.showStatus("Stabilizing " + slice + "/" + stackSize + 
+                        " ... (Press 'ESC' to Cancel)");
 
-                combine(ipFloatRef, ipFloatOut);
+                    SliceResult result = stabilizeSlice(
+                        reader.next().get(), slice, ipFloatRef,
+                        predictor.predict(slice), ws);
 
-                showProgress(tick / (double)stackSize);
-                ++tick;
-            }
-        }
-    }
+                    storeSlice(result, label, interval);
+                    predictor.add(result.slice, result.wp);
 
+                    combine(ipFloatRef, result.ipFloatOut);
 
-    void saveImage(ImageProcessor ip, int slice) {
-        VirtualStack virtualStack = (VirtualStack)stack;
-        String fileName = null;
-        try {
-            fileName = virtualStack.getFileName(slice);
+                    showProgress(tick / (double)stackSize);
+                    ++tick;
+                }
+            }
         }
-        catch (NullPointerException e) {
-            // do nothing...
+        catch (InterruptedException e) {
+            IJ.error("Stabilization was interrupted.");
         }
-        if (null == fileName || fileName.length() == 0) {
-            String title = imp.getTitle();
-            String baseName = getBaseName(title);
-            Object[] args = { Integer.valueOf(slice) };
-            fileName = baseName + String.format("%05d", args) + ".jpg";
+        catch (ExecutionException e) {
+            IJ.error("Stabilization failed: " + e.getCause());
         }
-        else {
-            boolean dup = false;
-            if (slice > 1 && virtualStack.getFileName(slice - 1) == fileName)
-                dup = true; // duplicated name
-            String baseName = getBaseName(fileName);
-            if (!dup)
-                fileName = baseName + ".jpg";
-            else {
-                Object[] args = { Integer.valueOf(slice) };
-                fileName = baseName + String.format("%05d", args) + ".jpg";
-            }
+        finally {
+            reader.close();
         }
-        FileSaver fs = new FileSaver(new ImagePlus(fileName, ip));
-        fs.setJpegQuality(95);
-        fs.saveAsJpeg(outputDir + File.separator + fileName);
-    }
-
 
-    String getBaseName(String fileName) {
-        String baseName = fileName;
-        int index = fileName.lastIndexOf('.');
-        if (index >= 0)
-            baseName = fileName.substring(0, index);
-        return baseName;
+        if (interval > 0)
+            keepState(ipFloatRef, predictor);
     }
 
 
-    double[][] estimateAffine(ImageProcessor   ip,
-                              ImageProcessor   ipRef,
-                              ImageProcessor[] ipPyramid,
-                              ImageProcessor[] ipRefPyramid,
-                              int              maxIter,
-                              double           tol)
+    /**
+        Multi-threaded version of process().
+
+        Slices are read, stabilized and converted back by a pool of worker
+        threads while the calling thread stores the results in slice order.
+        The template cannot be updated after each slice anymore since slices
+        are processed concurrently: all slices of a window are estimated
+        against the same snapshot of the template, which is then updated with
+        the stabilized slices of the window, in order. With
+        Template_Update_Coefficient = 1 the template is fixed and slices are
+        fully independent, so no synchronisation is needed between windows.
+    */
+    void processParallel(ImageProcessor  ipRef,
+                         ImageProcessor  ipFloatRef,
+                         MotionPredictor predictor,
+                         int             firstSlice,
+                         int             lastSlice,
+                         int             interval,
+                         int             tick)
     {
-        double[][] wp = { {0.0, 0.0, 0.0 }, 
-                          {0.0, 0.0, 0.0} };
-
-        // We operate on the gradient magnitude of the image
-        //   rather than on the original pixel intensity.
-        gradient(ipPyramid[0], ip);
-        gradient(ipRefPyramid[0], ipRef);
-
-        if (ipPyramid[4] != null && ipRefPyramid[4] != null) {
-            resize(ipPyramid[4], ipPyramid[0]);
-            resize(ipRefPyramid[4], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[4], ipRefPyramid[4], maxIter, tol);
-            wp[0][2] *= 16;
-            wp[1][2] *= 16;
-        }
+        int width = ipFloatRef.getWidth();
+        int height = ipFloatRef.getHeight();
+        int stackSize = stack.getSize();
 
-        if (ipPyramid[3] != null && ipRefPyramid[3] != null) {
-            resize(ipPyramid[3], ipPyramid[0]);
-            resize(ipRefPyramid[3], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[3], ipRefPyramid[3], maxIter, tol);
-            wp[0][2] *=  8;
-            wp[1][2] *=  8;
+        boolean fixedRef = alpha >= 1.0;
+        int windowSize = window > 0 ? window : threads;
+        // keep all workers busy while the results are being stored
+        // but do not hold more than that in memory
+        int maxPending = 2 * threads;
+
+        // one set of workspaces per worker
+        final BlockingQueue<Workspace> workspaces =
+            new ArrayBlockingQueue<Workspace>(threads);
+        for (int i = 0; i < threads; ++i)
+            workspaces.add(createWorkspace(width, height));
+
+        int slice = firstSlice;
+        if (interval > 0 && interval * slice <= interval * lastSlice) {
+            IJ.showStatus("Skipping " + slice + "/" + stackSize + " ...");
+            if (ipRef != null)
+                storeReferenceSlice(ipRef, stack.getSliceLabel(slice), slice, interval);
+            showProgress(tick / (double)stackSize);
+            ++tick;
+            slice += interval;
         }
 
-        if (ipPyramid[2] != null && ipRefPyramid[2] != null) {
-            resize(ipPyramid[2], ipPyramid[0]);
-            resize(ipRefPyramid[2], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[2], ipRefPyramid[2], maxIter, tol);
-            wp[0][2] *=  4;
-            wp[1][2] *=  4;
-        }
+        SliceReader reader = createReader(slice, lastSlice, interval, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<SliceResult>> pending = new LinkedList<Future<SliceResult>>();
+        ImageProcessor ipFloatTemplate = fixedRef ? ipFloatRef : ipFloatRef.duplicate();
+        int windowEnd = slice + interval * windowSize;
 
-        if (ipPyramid[1] != null && ipRefPyramid[1] != null) {
-            resize(ipPyramid[1], ipPyramid[0]);
-            resize(ipRefPyramid[1], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[1], ipRefPyramid[1], maxIter, tol);
-            wp[0][2] *=  2;
-            wp[1][2] *=  2;
-        }
+        try {
+            while (true) {
+                // Queue slices until the pipeline or the window is full
+                while (pending.size() < maxPending
+                       && interval * slice <= interval * lastSlice
+                       && (fixedRef || interval * slice < interval * windowEnd)
+                       && !IJ.escapePressed()) {
+                    final int s = slice;
+                    final Future<ImageProcessor> ip = reader.next();
+                    final ImageProcessor ipTemplate = ipFloatTemplate;
+                    // predicted from the slices stored so far, which do not
+                    //   depend on the timing of the workers
+                    final double[][] wpPrediction = predictor.predict(s);
+                    pending.add(pool.submit(new Callable<SliceResult>() {
+                        public SliceResult call() throws Exception {
+                            Workspace ws = workspaces.poll();
+                            try {
+                                return stabilizeSlice(ip.get(), s,
+                                    ipTemplate, wpPrediction, ws);
+                            }
+                            finally {
+                                workspaces.add(ws);
+                            }
+                        }
+                    }));
+                    slice += interval;
+                }
 
-        wp = estimateAffine(wp, ipPyramid[0], ipRefPyramid[0], maxIter, tol);
+                if (pending.isEmpty()) {
+                    if (IJ.escapePressed() || interval * slice > interval * lastSlice)
+                        break;
+                    // The window is done, start the next one with the updated template
+                    ipFloatTemplate = ipFloatRef.duplicate();
+                    windowEnd = slice + interval * windowSize;
+                    continue;
+                }
 
-        return wp;
-    }
+                // Store the oldest slice, in order
+                SliceResult result = pending.removeFirst().get();
 
+                IJ.showStatus("Stabilizing " + result.slice + "/" + stackSize + 
+                    " ... (Press 'ESC' to Cancel)");
 
-    double[][] estimateAffine(double[][]     wp,
-                              ImageProcessor ip,
-                              ImageProcessor ipRef,
-                              int            maxIter,
-                              double         tol)
-    {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
+                storeSlice(result, stack.getSliceLabel(result.slice), interval);
+                predictor.add(result.slice, result.wp);
 
-        float[] jx = new float[width * height];
-        float[] jy = new float[width * height];
+                if (!fixedRef)
+                    combine(ipFloatRef, result.ipFloatOut);
 
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                jx[y * width + x] = (float)x;
-                jy[y * width + x] = (float)y;
+                showProgress(tick / (double)stackSize);
+                ++tick;
             }
         }
+        catch (InterruptedException e) {
+            IJ.error("Stabilization was interrupted.");
+        }
+        catch (ExecutionException e) {
+            IJ.error("Stabilization failed: " + e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+            reader.close();
+        }
 
-        float[][] sd = new float[6][];
+        if (interval > 0)
+            keepState(ipFloatRef, predictor);
+    }
 
-        sd[4] = dx(ipRef);
-        sd[5] = dy(ipRef);
-        sd[0] = dot(sd[4], jx);
-        sd[1] = dot(sd[5], jx);
-        sd[2] = dot(sd[4], jy);
-        sd[3] = dot(sd[5], jy);
 
-        ImageProcessor ipOut = ip.duplicate();
+    MotionPredictor createPredictor(int firstSlice, int interval) {
+        MotionPredictor predictor = new MotionPredictor(
+            transform == PHASE_CORRELATION || transform == FEATURES ?
+                NO_PREDICTION : prediction);
+        // the reference slice is not transformed
+        predictor.add(interval > 0 ? firstSlice : firstSlice - interval,
+                      new double[2][isAffine() ? 3 : 1]);
+        return predictor;
+    }
 
-        double[] dp = { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0 };
 
-        double[][] bestWp = new double[2][3];
-        bestWp[0][0] = wp[0][0];
-        bestWp[0][1] = wp[0][1];
-        bestWp[0][2] = wp[0][2];
-        bestWp[1][0] = wp[1][0];
-        bestWp[1][1] = wp[1][1];
-        bestWp[1][2] = wp[1][2];
+    /**
+        Predicts the transformation of a slice from the ones of the slices
+        stabilized before it. Consecutive frames drift smoothly, so the last
+        transformation, or its extrapolation at constant velocity, is a much
+        better starting point for the estimation than the identity.
+    */
+    static class MotionPredictor {
+        final int  mode;
+        // last two slices added, slice1 being the most recent
+        int        slice0;
+        int        slice1;
+        double[][] wp0 = null;
+        double[][] wp1 = null;
+
+        MotionPredictor(int mode) {
+            this.mode = mode;
+        }
 
-        double[][] d = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
+        void add(int slice, double[][] wp) {
+            slice0 = slice1;
+            wp0 = wp1;
+            slice1 = slice;
+            wp1 = wp;
+        }
 
-        double[][] h = new double[6][6];
+        /* Returns null when there is nothing to predict from */
+        double[][] predict(int slice) {
+            if (mode == NO_PREDICTION || wp1 == null)
+                return null;
 
-        for (int y = 0; y < 6; ++y) {
-            for (int x = 0; x < 6; ++x) {
-                h[y][x] = dotSum(sd[x], sd[y]);
+            double[][] wp = new double[2][wp1[0].length];
+            for (int j = 0; j < 2; ++j) {
+                for (int i = 0; i < wp[j].length; ++i)
+                    wp[j][i] = wp1[j][i];
             }
-        }
-        h = invert(h);
 
-        double oldRmse = Double.MAX_VALUE;
-        double minRmse = Double.MAX_VALUE;
+            if (mode == CONSTANT_VELOCITY && wp0 != null) {
+                double t = (slice - slice1) / (double)(slice1 - slice0);
+                for (int j = 0; j < 2; ++j) {
+                    for (int i = 0; i < wp[j].length; ++i)
+                        wp[j][i] += t * (wp1[j][i] - wp0[j][i]);
+                }
+            }
+            return wp;
+        }
+    }
 
-        for (int iter = 0; iter < maxIter; ++iter) {
 
-            warpAffine(ipOut, ip, wp);
+    SliceReader createReader(int firstSlice, int lastSlice, int interval, int nThreads) {
+        // slices of a stack in memory are not worth reading ahead
+        int ahead = stackVirtual ? Math.max(prefetch, 0) : 0;
+        return new SliceReader(stack, firstSlice, lastSlice, interval,
+                               ahead, nThreads);
+    }
 
-            subtract(ipOut, ipRef);
 
-            double rmse = rootMeanSquare(ipOut);
+    /**
+        Reads the slices of a stack in processing order, decoding up to
+        'ahead' slices in the background while the previous ones are being
+        stabilized. Only the decoded slices that were not requested yet are
+        held in memory, so the read-ahead does not grow with the stack.
+        With ahead = 0 a slice is read by the thread getting it.
+    */
+    static class SliceReader {
+        final ImageStack      stack;
+        final int             lastSlice;
+        final int             interval;
+        final int             ahead;
+        final ExecutorService pool;
+        final LinkedList<Future<ImageProcessor>> queue =
+            new LinkedList<Future<ImageProcessor>>();
+        // next slice to be queued for reading
+        int                   slice;
+
+        SliceReader(ImageStack stack, int firstSlice, int lastSlice,
+                    int interval, int ahead, int nThreads)
+        {
+            this.stack = stack;
+            this.slice = firstSlice;
+            this.lastSlice = lastSlice;
+            this.interval = interval;
+            this.ahead = ahead;
+            if (ahead > 0) {
+                pool = Executors.newFixedThreadPool(nThreads);
+                fill();
+            }
+            else
+                pool = null;
+        }
 
-            if (iter > 0) {
-                if (rmse < minRmse) {
-                    bestWp[0][0] = wp[0][0];
-                    bestWp[0][1] = wp[0][1];
-                    bestWp[0][2] = wp[0][2];
-                    bestWp[1][0] = wp[1][0];
-                    bestWp[1][1] = wp[1][1];
-                    bestWp[1][2] = wp[1][2];
-                    minRmse      = rmse;
-                }
-                if (Math.abs((oldRmse - rmse) /
-                        (oldRmse + Double.MIN_VALUE)) < tol)
-                    break;
+        /* Returns the next slice; the futures must be consumed in order */
+        Future<ImageProcessor> next() {
+            Future<ImageProcessor> ip = null;
+            if (pool == null) {
+                // read by the thread which gets the slice
+                ip = new FutureTask<ImageProcessor>(read(slice)) {
+                    public ImageProcessor get()
+                        throws InterruptedException, ExecutionException
+                    {
+                        run();
+                        return super.get();
+                    }
+                };
+                slice += interval;
             }
-            oldRmse = rmse;
+            else {
+                // every slice of the range is queued by the time it is requested
+                ip = queue.removeFirst();
+                fill();
+            }
+            return ip;
+        }
 
-            float[] error = (float[])ipOut.getPixels();
+        void fill() {
+            while (queue.size() < ahead && interval * slice <= interval * lastSlice) {
+                queue.add(pool.submit(read(slice)));
+                slice += interval;
+            }
+        }
 
-            dp[0] = dotSum(sd[0], error);
-            dp[1] = dotSum(sd[1], error);
-            dp[2] = dotSum(sd[2], error);
-            dp[3] = dotSum(sd[3], error);
-            dp[4] = dotSum(sd[4], error);
-            dp[5] = dotSum(sd[5], error);
+        Callable<ImageProcessor> read(final int s) {
+            return new Callable<ImageProcessor>() {
+                public ImageProcessor call() {
+                    return stack.getProcessor(s);
+                }
+            };
+        }
 
-            dp = prod(h, dp);
+        void close() {
+            if (pool != null)
+                pool.shutdownNow();
+            queue.clear();
+        }
+    }
 
-            d[0][0] = dp[0] + 1.0;
-            d[0][1] = dp[2];
-            d[0][2] = dp[4];
-            d[1][0] = dp[1];
-            d[1][1] = dp[3] + 1.0;
-            d[1][2] = dp[5];
-            d[2][0] = 0.0;
-            d[2][1] = 0.0;
-            d[2][2] = 1.0;
 
-            w[0][0] = wp[0][0] + 1.0;
-            w[0][1] = wp[0][1];
-            w[0][2] = wp[0][2];
-            w[1][0] = wp[1][0];
-            w[1][1] = wp[1][1] + 1.0;
-            w[1][2] = wp[1][2];
-            w[2][0] = 0.0;
-            w[2][1] = 0.0;
-            w[2][2] = 1.0;
+    /**
+        Encoding and writing JPEGs is about as slow as stabilizing them, so the
+        images are written by a small pool of threads. The queue of images
+        waiting to be written is bounded: when it is full, the stabilization
+        thread writes the image itself, which slows it down to the speed of
+        the writers instead of filling the memory.
+    */
+    ExecutorService createWriterPool(int nThreads) {
+        return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(nThreads),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
 
-            w = prod(w, invert(d));
 
-            wp[0][0] = w[0][0] - 1.0;
-            wp[0][1] = w[0][1];
-            wp[0][2] = w[0][2];
-            wp[1][0] = w[1][0];
-            wp[1][1] = w[1][1] - 1.0;
-            wp[1][2] = w[1][2];
+    /* Waits for all images to be written */
+    void closeWriterPool() {
+        writerPool.shutdown();
+        try {
+            while (!writerPool.awaitTermination(1, TimeUnit.SECONDS))
+                IJ.showStatus("Writing stabilized images ...");
         }
-
-        return bestWp;
+        catch (InterruptedException e) {
+            IJ.error("Writing the stabilized images was interrupted.");
+        }
+        writerPool = null;
     }
 
 
-    double[][] estimateTranslation(ImageProcessor   ip,
-                                   ImageProcessor   ipRef,
-                                   ImageProcessor[] ipPyramid,
-                                   ImageProcessor[] ipRefPyramid,
-                                   int              maxIter,
-                                   double           tol)
-    {
-        double[][] wp = { {0.0}, {0.0} };
-
-        // We operate on the gradient magnitude of the image
-        //   rather than on the original pixel intensity.
-        gradient(ipPyramid[0], ip);
-        gradient(ipRefPyramid[0], ipRef);
-        
-        if (ipPyramid[4] != null && ipRefPyramid[4] != null) {
-            resize(ipPyramid[4], ipPyramid[0]);
-            resize(ipRefPyramid[4], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[4], ipRefPyramid[4], maxIter, tol);
-            wp[0][0] *= 16;
-            wp[1][0] *= 16;
+    /* Stores a stabilized image in the frame cache, if any */
+    void cacheImage(ImageProcessor ip, String fileName, int slice) {
+        if (cacheWriter == null)
+            return;
+        try {
+            cacheWriter.put(slice, fileName, ip);
         }
-
-        if (ipPyramid[3] != null && ipRefPyramid[3] != null) {
-            resize(ipPyramid[3], ipPyramid[0]);
-            resize(ipRefPyramid[3], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[3], ipRefPyramid[3], maxIter, tol);
-            wp[0][0] *=  8;
-            wp[1][0] *=  8;
+        catch (IOException e) {
+            IJ.log("Image Stabilizer: could not cache " + fileName + ": " + e.getMessage());
         }
+    }
 
-        if (ipPyramid[2] != null && ipRefPyramid[2] != null) {
-            resize(ipPyramid[2], ipPyramid[0]);
-            resize(ipRefPyramid[2], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[2], ipRefPyramid[2], maxIter, tol);
-            wp[0][0] *=  4;
-            wp[1][0] *=  4;
-        }
 
-        if (ipPyramid[1] != null && ipRefPyramid[1] != null) {
-            resize(ipPyramid[1], ipPyramid[0]);
-            resize(ipRefPyramid[1], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[1], ipRefPyramid[1], maxIter, tol);
-            wp[0][0] *=  2;
-            wp[1][0] *=  2;
+    void closeCache() {
+        if (cacheWriter == null)
+            return;
+        try {
+            cacheWriter.close();
         }
+        catch (IOException e) {
+            IJ.error("Could not write the frame cache " + cacheFile);
+        }
+        cacheWriter = null;
+    }
 
-        wp = estimateTranslation(wp, ipPyramid[0], ipRefPyramid[0], maxIter, tol);
 
-        return wp;
+    /* Result of the stabilization of one slice */
+    static class SliceResult {
+        int            slice;
+        double[][]     wp;
+        FloatProcessor ipFloatOut;
+        ImageProcessor ipOut;
+        // Gauss-Newton iterations spent on the slice
+        int            iterations;
     }
 
 
-    double[][] estimateTranslation(double[][]     wp,
-                                   ImageProcessor ip,
-                                   ImageProcessor ipRef,
-                                   int            maxIter,
-                                   double         tol)
+    SliceResult stabilizeSlice(ImageProcessor ip,
+                               int            slice,
+                               ImageProcessor ipFloatRef,
+                               double[][]     wpPrediction,
+                               Workspace      ws)
     {
-        float[] dxRef = dx(ipRef);
-        float[] dyRef = dy(ipRef);
+        ImageProcessor ipFloat = ip.convertToFloat();
 
-        ImageProcessor ipOut = ip.duplicate();
+        double[][] wp = null;
+
+        if (transform == AFFINE)
+            wp = estimateAffine(
+                ipFloat, ipFloatRef, wpPrediction, ws, maxIter, tol);
+        else if (transform == PHASE_CORRELATION)
+            wp = estimatePhaseCorrelation(
+                ipFloat, ipFloatRef, ws, maxIter, tol);
+        else if (transform == FEATURES)
+            wp = estimateFeatures(
+                ipFloat, ipFloatRef, ws, maxIter, tol);
+        else
+            wp = estimateTranslation(
+                ipFloat, ipFloatRef, wpPrediction, ws, maxIter, tol);
+
+        SliceResult result = warpSlice(ip, ipFloat, slice, wp, ws);
+        result.iterations = ws.iterations;
+        return result;
+    }
+
+
+    /* Applies the transformation wp to the slice ip, whose float version is
+       ipFloat, with the buffers of ws when it is not null */
+    SliceResult warpSlice(ImageProcessor ip,
+                          ImageProcessor ipFloat,
+                          int            slice,
+                          double[][]     wp,
+                          Workspace      ws)
+    {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+
+        FloatProcessor ipFloatOut = new FloatProcessor(width, height);
+
+        int[] runs = rowRuns(ipFloatOut);
+        if (isAffine())
+            warpAffine(ipFloatOut, ipFloat, wp, runs, ws);
+        else
+            warpTranslation(ipFloatOut, ipFloat, wp, runs, ws);
+
+        ImageProcessor ipOut = null;
+
+        if (ip instanceof ColorProcessor) {
+            ipOut = new ColorProcessor(width, height);
+
+            if (isAffine())
+                warpColorAffine(ipOut, (ColorProcessor)ip, wp, ws);
+            else
+                warpColorTranslation(ipOut, (ColorProcessor)ip, wp, ws);
+        }
+        else if (ip instanceof ByteProcessor)
+            ipOut = ipFloatOut.convertToByte(false);
+        else if (ip instanceof ShortProcessor)
+            ipOut = ipFloatOut.convertToShort(false);
+        else
+            ipOut = ipFloatOut;
+
+        SliceResult result = new SliceResult();
+        result.slice = slice;
+        result.wp = wp;
+        result.ipFloatOut = ipFloatOut;
+        result.ipOut = ipOut;
+        return result;
+    }
+
+
+    void storeReferenceSlice(ImageProcessor ipRef,
+                             String         label,
+                             int            slice,
+                             int            interval)
+    {
+        if (!isAffine()){
+           if (logEditor != null) {
+               logEditor.append(
+                   Integer.toString(slice) + "," + 
+                   Integer.toString(interval) + "," + 
+                   "0,0,0\n"
+               );
+           }
+        }
+        else {
+           if (logEditor != null) {
+               logEditor.append(
+                   Integer.toString(slice) + "," + 
+                   Integer.toString(interval) + "," + 
+                   "0,0,0,0,0,0,0\n"
+               );
+           }
+        }
+        writeTransform(slice, new double[2][isAffine() ? 3 : 1]);
+
+        if (stackOut != null)
+            stackOut.addSlice(label, ipRef);
+        else {
+            if (!stackVirtual)
+                stack.setPixels(ipRef.getPixels(), slice);
+            else
+                saveImage(ipRef, slice);
+        }
+    }
+
+
+    void storeSlice(SliceResult result, String label, int interval) {
+        int slice = result.slice;
+        double[][] wp = result.wp;
+
+        if (logEnabled) {
+            if (!isAffine())
+                logEditor.append(
+                    Integer.toString(slice) + "," + Integer.toString(interval) + "," +
+                    Double.toString(wp[0][0]) + "," +
+                    Double.toString(wp[1][0]) + "," +
+                    Integer.toString(result.iterations) +
+                    "\n");
+            else
+                logEditor.append(
+                    Integer.toString(slice) + "," + Integer.toString(interval) + "," +
+                    Double.toString(wp[0][0]) + "," +
+                    Double.toString(wp[0][1]) + "," +
+                    Double.toString(wp[0][2]) + "," +
+                    Double.toString(wp[1][0]) + "," +
+                    Double.toString(wp[1][1]) + "," +
+                    Double.toString(wp[1][2]) + "," +
+                    Integer.toString(result.iterations) +
+                    "\n");
+        }
+        writeTransform(slice, wp);
+        totalIterations += result.iterations;
+        ++totalSlices;
+
+        if (stackOut == null) {
+            if (!stackVirtual)
+                stack.setPixels(result.ipOut.getPixels(), slice);
+            else
+                saveImage(result.ipOut, slice);
+        }
+        else if (interval < 0)
+            stackOut.addSlice(label, result.ipOut, 0);
+        else
+            stackOut.addSlice(label, result.ipOut);
+    }
+
+
+    /**
+        Transformations are saved as CSV, one line per slice, in the order in
+        which slices are stored:
+            slice,dx,dy                      for translations
+            slice,a00,a01,a02,a10,a11,a12    for affine transformations
+        i.e. the coefficients of wp, row by row.
+    */
+    void writeTransform(int slice, double[][] wp) {
+        if (transformWriter == null)
+            return;
+        StringBuffer line = new StringBuffer(Integer.toString(slice));
+        for (int j = 0; j < 2; ++j) {
+            for (int i = 0; i < wp[j].length; ++i)
+                line.append(',').append(Double.toString(wp[j][i]));
+        }
+        transformWriter.println(line);
+    }
+
+
+    /**
+        Reads the transformations saved by writeTransform, indexed by slice
+        number, and sets the type of transformation accordingly. Returns
+        null, after telling the user why, when the file cannot be used for
+        the current stack.
+    */
+    double[][][] readTransforms(String path) {
+        int stackSize = stack.getSize();
+        double[][][] wps = new double[stackSize + 1][][];
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(path));
+            String line = in.readLine();
+            int nCoef = line == null ? 0 : line.split(",").length - 1;
+            if (nCoef != 2 && nCoef != 6) {
+                IJ.error(path + " does not contain Image Stabilizer transformations.");
+                return null;
+            }
+            transform = nCoef == 6 ? AFFINE : TRANSLATION;
+
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0)
+                    continue;
+                String[] fields = line.split(",");
+                int slice = (int)Tools.parseDouble(fields[0], 0);
+                if (fields.length != nCoef + 1 || slice < 1 || slice > stackSize) {
+                    IJ.error("Invalid transformation in " + path + ":\n" + line);
+                    return null;
+                }
+                double[][] wp = new double[2][nCoef / 2];
+                for (int k = 0; k < nCoef; ++k) {
+                    double coef = Tools.parseDouble(fields[k + 1]);
+                    if (Double.isNaN(coef)) {
+                        IJ.error("Invalid transformation in " + path + ":\n" + line);
+                        return null;
+                    }
+                    wp[k / (nCoef / 2)][k % (nCoef / 2)] = coef;
+                }
+                wps[slice] = wp;
+            }
+        }
+        catch (IOException e) {
+            IJ.error("Could not read the transformations from " + path);
+            return null;
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                // nothing was written
+            }
+        }
+
+        for (int slice = 1; slice <= stackSize; ++slice) {
+            if (wps[slice] == null) {
+                IJ.error(path + " has no transformation for slice " + slice + ".");
+                return null;
+            }
+        }
+        return wps;
+    }
+
+
+    /**
+        Replay mode: the transformations are read from a file instead of
+        being estimated, so that the images can be exported again (e.g.
+        with another JPEG quality) for the cost of warping them only.
+    */
+    void replay(double[][][] wps) {
+        int stackSize = stack.getSize();
+        SliceReader reader = createReader(1, stackSize, 1, Math.max(threads, 1));
+        if (threads > 1)
+            warpPool = Executors.newFixedThreadPool(threads);
+
+        try {
+            for (int slice = 1; slice <= stackSize && !IJ.escapePressed(); ++slice) {
+                IJ.showStatus("Transforming " + slice + "/" + stackSize + 
+                    " ... (Press 'ESC' to Cancel)");
+
+                ImageProcessor ip = reader.next().get();
+                String label = stack.getSliceLabel(slice);
+                if (isIdentity(wps[slice]))
+                    // e.g. the reference slice, which is kept as is
+                    storeReferenceSlice(ip, label, slice, 1);
+                else
+                    storeSlice(warpSlice(ip, ip.convertToFloat(), slice,
+                        wps[slice], null), label, 1);
+
+                showProgress(slice / (double)stackSize);
+            }
+        }
+        catch (InterruptedException e) {
+            IJ.error("Transformation was interrupted.");
+        }
+        catch (ExecutionException e) {
+            IJ.error("Transformation failed: " + e.getCause());
+        }
+        finally {
+            reader.close();
+            if (warpPool != null) {
+                warpPool.shutdown();
+                warpPool = null;
+            }
+        }
+    }
+
+
+    boolean isIdentity(double[][] wp) {
+        for (int j = 0; j < 2; ++j) {
+            for (int i = 0; i < wp[j].length; ++i) {
+                if (wp[j][i] != 0.0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+
+    /* Template and motion predictor after the last slice stored */
+    static class State {
+        int             slice;
+        ImageProcessor  ipFloatRef;
+        MotionPredictor predictor;
+    }
+
+
+    /* Keeps the state of the stabilization, written at the end of the run */
+    void keepState(ImageProcessor ipFloatRef, MotionPredictor predictor) {
+        if (stateFile == null)
+            return;
+        lastState = new State();
+        lastState.slice = predictor.slice1;
+        lastState.ipFloatRef = ipFloatRef;
+        lastState.predictor = predictor;
+    }
+
+
+    /**
+        The state is saved in a binary file (see DataOutputStream):
+            version, transformation, width, height,
+            last slice stored and the name of its image,
+            the two slices last added to the motion predictor and their
+              transformations (number of coefficients per row, 0 for none,
+              then the coefficients),
+            pixels of the template.
+        It replaces the previous state only once it is complete, so that an
+        interrupted run leaves it intact.
+    */
+    void writeState() {
+        if (stateFile == null || lastState == null)
+            return;
+        File file = new File(stateFile);
+        File part = new File(stateFile + ".part");
+        MotionPredictor predictor = lastState.predictor;
+        ImageProcessor ipFloatRef = lastState.ipFloatRef;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(part)));
+            out.writeInt(STATE_VERSION);
+            out.writeInt(transform);
+            out.writeInt(ipFloatRef.getWidth());
+            out.writeInt(ipFloatRef.getHeight());
+            out.writeInt(lastState.slice);
+            out.writeUTF(getFileName(lastState.slice));
+            out.writeInt(predictor.slice0);
+            writeCoefficients(out, predictor.wp0);
+            writeCoefficients(out, predictor.wp1);
+            float[] pixels = (float[])ipFloatRef.getPixels();
+            for (int i = 0; i < pixels.length; ++i)
+                out.writeFloat(pixels[i]);
+            out.close();
+            out = null;
+            file.delete();
+            if (!part.renameTo(file))
+                throw new IOException("cannot rename " + part);
+        }
+        catch (IOException e) {
+            IJ.error("Could not write the state of the stabilization to " + stateFile);
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException e) {
+                // the error was reported already
+            }
+        }
+    }
+
+
+    void writeCoefficients(DataOutputStream out, double[][] wp) throws IOException {
+        out.writeInt(wp == null ? 0 : wp[0].length);
+        if (wp == null)
+            return;
+        for (int j = 0; j < 2; ++j) {
+            for (int i = 0; i < wp[j].length; ++i)
+                out.writeDouble(wp[j][i]);
+        }
+    }
+
+
+    /**
+        Reads the state saved by writeState. Returns null when there is none,
+        or, after logging why, when it does not fit the current stack: the
+        slices it was saved after must be the first slices of the stack, with
+        the same images, and the slices following them are the new ones.
+    */
+    State readState(String path) {
+        File file = new File(path);
+        if (!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            if (in.readInt() != STATE_VERSION)
+                return rejectState(path, "unknown version");
+            int xform = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            int slice = in.readInt();
+            String name = in.readUTF();
+            int slice0 = in.readInt();
+            double[][] wp0 = readCoefficients(in);
+            double[][] wp1 = readCoefficients(in);
+            if (xform != transform)
+                return rejectState(path, "another transformation was used");
+            if (width != stack.getWidth() || height != stack.getHeight())
+                return rejectState(path, "the images have another size");
+            if (slice < 1 || slice > stack.getSize() || !name.equals(getFileName(slice)))
+                return rejectState(path, "the images stabilized before have changed");
+
+            FloatProcessor ipFloatRef = new FloatProcessor(width, height);
+            float[] pixels = (float[])ipFloatRef.getPixels();
+            for (int i = 0; i < pixels.length; ++i)
+                pixels[i] = in.readFloat();
+
+            State state = new State();
+            state.slice = slice;
+            state.ipFloatRef = ipFloatRef;
+            // the last slice is the reference one when nothing else was stored
+            state.predictor = createPredictor(slice, 1);
+            if (wp0 != null) {
+                state.predictor.add(slice0, wp0);
+                state.predictor.add(slice, wp1);
+            }
+            return state;
+        }
+        catch (IOException e) {
+            return rejectState(path, e.getMessage());
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+
+    double[][] readCoefficients(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n == 0)
+            return null;
+        double[][] wp = new double[2][n];
+        for (int j = 0; j < 2; ++j) {
+            for (int i = 0; i < n; ++i)
+                wp[j][i] = in.readDouble();
+        }
+        return wp;
+    }
+
+
+    State rejectState(String path, String reason) {
+        IJ.log("Image Stabilizer: " + path + " cannot be used (" + reason +
+            "), all slices are stabilized");
+        return null;
+    }
+
+
+    /* Name of the image of a slice of a virtual stack */
+    String getFileName(int slice) {
+        String fileName = null;
+        try {
+            fileName = ((VirtualStack)stack).getFileName(slice);
+        }
+        catch (NullPointerException e) {
+            // no name, as in saveImage
+        }
+        return fileName == null ? "" : fileName;
+    }
+
+
+    /* Pyramid of pyramidLevel levels, or down to the level of the phase
+       correlation when that is deeper */
+    ImageProcessor[] createPyramid(int width, int height) {
+        int levels = pyramidLevel;
+        if (transform == PHASE_CORRELATION) {
+            while (Math.max(width, height) >> levels > PHASE_SIZE)
+                ++levels;
+        }
+        return createPyramid(width, height, levels);
+    }
 
-        double[] dp = { 0.0, 0.0 };
 
-        double[][] bestWp = new double[2][1];
+    /* Pyramid of up to 4 levels, each half the size of the previous one and
+       at least 50 pixels wide and high */
+    ImageProcessor[] createPyramid(int width, int height, int levels) {
+        ImageProcessor[] ipPyramid = { null, null, null, null, null };
+
+        ipPyramid[0] = new FloatProcessor(width, height);
+
+        for (int l = 1; l < ipPyramid.length && l <= levels
+                 && width >= 50 << l && height >= 50 << l; ++l)
+            ipPyramid[l] = new FloatProcessor(width >> l, height >> l);
+        return ipPyramid;
+    }
+
+
+    Workspace createWorkspace(int width, int height) {
+        Workspace ws = new Workspace(createPyramid(width, height),
+                                     createPyramid(width, height),
+                                     transform == FEATURES ? 6 : (transform == AFFINE ? 4 : 0));
+        ws.runs = createRuns(ws.ipPyramid, mask);
+        ws.columns = new Columns(width);
+        ws.warp = new WarpTask();
+        return ws;
+    }
+
+
+    /**
+        Pixels of each level of the pyramid used by the estimation, as runs
+        of consecutive pixels along the rows: start and end (exclusive)
+        indices, one pair after the other. Without a mask the runs are the
+        rows of the image; otherwise they are the pixels of the mask, scaled
+        down to the size of the level.
+    */
+    int[][] createRuns(ImageProcessor[] ipPyramid, ImageProcessor mask) {
+        int[][] runs = new int[ipPyramid.length][];
+        for (int l = 0; l < ipPyramid.length; ++l) {
+            if (ipPyramid[l] == null)
+                continue;
+            int width = ipPyramid[l].getWidth();
+            int height = ipPyramid[l].getHeight();
+
+            if (mask == null) {
+                runs[l] = new int[2 * height];
+                for (int y = 0; y < height; ++y) {
+                    runs[l][2 * y] = y * width;
+                    runs[l][2 * y + 1] = (y + 1) * width;
+                }
+                continue;
+            }
+
+            byte[] maskPixels = (byte[])mask.getPixels();
+            int maskWidth = mask.getWidth();
+            int maskHeight = mask.getHeight();
+            // count the runs first, then store them
+            int[] levelRuns = null;
+            for (int pass = 0; pass < 2; ++pass) {
+                int nRuns = 0;
+                for (int y = 0; y < height; ++y) {
+                    int offset = (y * maskHeight / height) * maskWidth;
+                    boolean inside = false;
+                    for (int x = 0; x <= width; ++x) {
+                        boolean in = x < width
+                            && maskPixels[offset + x * maskWidth / width] != 0;
+                        if (in != inside) {
+                            if (levelRuns != null)
+                                levelRuns[nRuns] = y * width + x;
+                            ++nRuns;
+                            inside = in;
+                        }
+                    }
+                }
+                if (levelRuns == null)
+                    levelRuns = new int[nRuns];
+            }
+            runs[l] = levelRuns;
+        }
+        return runs;
+    }
+
+
+    /**
+        Buffers used by the estimation of one slice, allocated once per stack
+        and per thread so that estimating a slice allocates (almost) nothing.
+        The steepest descent images are sized for the full resolution and
+        reused on every level of the pyramid.
+    */
+    static class Workspace {
+        ImageProcessor[] ipPyramid;
+        ImageProcessor[] ipRefPyramid;
+        // warped image, then error image, for each level of the pyramid
+        ImageProcessor[] ipOut;
+        // pixels used by the estimation, for each level of the pyramid
+        int[][]          runs;
+        // scratch images: the products of the derivatives with x and y of
+        //   the steepest descent images of the affine transformation, or the
+        //   keypoint responses of the feature matching
+        float[][]        sd;
+        // derivatives of each level of the template pyramid (see buildPyramid)
+        float[][]        dxRef;
+        float[][]        dyRef;
+        // steepest descent images of each level: the products, then dxRef and dyRef
+        float[][][]      sdPyramid;
+        // Gauss-Newton iterations of the last estimation, over all levels
+        int              iterations;
+        // columns of the translations, for rows of up to the width of level 0,
+        //   and task of the warps (see WarpTask)
+        Columns          columns;
+        WarpTask         warp;
+
+        // vectors and matrices of the Gauss-Newton iterations
+        double[]         b = new double[6];
+        double[]         dp = new double[6];
+        double[][]       h2 = new double[2][2];
+        double[][]       h6 = new double[6][6];
+        double[][]       d = new double[3][3];
+        double[][]       dInv = new double[3][3];
+        double[][]       w = new double[3][3];
+        double[][]       wd = new double[3][3];
+        double[][]       bestWp = new double[2][3];
+
+        // phase correlation buffers, allocated on first use
+        float[]          re;
+        float[]          im;
+        float[]          reRef;
+        float[]          imRef;
+        double[]         lineRe;
+        double[]         lineIm;
+
+        // keypoints of the image and of the template, allocated on first use
+        double[]         kx;
+        double[]         ky;
+        double[]         kxRef;
+        double[]         kyRef;
+        float[]          patches;
+        float[]          patchesRef;
+        int[]            matches;
+        int[]            matchesRef;
+        double[]         scoresRef;
+        boolean[]        inliers;
+        boolean[]        bestInliers;
+        long[]           candidates;
+        // RANSAC: indices of the matched keypoints, transformation of a
+        //   sample and random numbers, seeded again for every slice
+        int[]            matched;
+        double[][]       affine;
+        Random           random;
+
+        Workspace(ImageProcessor[] ipPyramid, ImageProcessor[] ipRefPyramid, int nSd) {
+            this.ipPyramid = ipPyramid;
+            this.ipRefPyramid = ipRefPyramid;
+            int width = ipPyramid[0].getWidth();
+            int height = ipPyramid[0].getHeight();
+            ipOut = new ImageProcessor[ipPyramid.length];
+            for (int l = 0; l < ipPyramid.length; ++l) {
+                if (ipPyramid[l] != null)
+                    ipOut[l] = new FloatProcessor(
+                        ipPyramid[l].getWidth(), ipPyramid[l].getHeight());
+            }
+            sd = new float[nSd][width * height];
+
+            int nProducts = Math.min(nSd, 4);
+            dxRef = new float[ipPyramid.length][];
+            dyRef = new float[ipPyramid.length][];
+            sdPyramid = new float[ipPyramid.length][][];
+            for (int l = 0; l < ipPyramid.length; ++l) {
+                if (ipPyramid[l] == null)
+                    continue;
+                int n = ipPyramid[l].getWidth() * ipPyramid[l].getHeight();
+                dxRef[l] = new float[n];
+                dyRef[l] = new float[n];
+                sdPyramid[l] = new float[nProducts + 2][];
+                for (int k = 0; k < nProducts; ++k)
+                    sdPyramid[l][k] = sd[k];
+                sdPyramid[l][nProducts] = dxRef[l];
+                sdPyramid[l][nProducts + 1] = dyRef[l];
+            }
+        }
+    }
+
+
+    void saveImage(ImageProcessor ip, int slice) {
+        VirtualStack virtualStack = (VirtualStack)stack;
+        String fileName = null;
+        try {
+            fileName = virtualStack.getFileName(slice);
+        }
+        catch (NullPointerException e) {
+            // do nothing...
+        }
+        if (null == fileName || fileName.length() == 0) {
+            String title = imp.getTitle();
+            String baseName = getBaseName(title);
+            Object[] args = { Integer.valueOf(slice) };
+            fileName = baseName + String.format("%05d", args) + ".jpg";
+        }
+        else {
+            boolean dup = false;
+            if (slice > 1 && virtualStack.getFileName(slice - 1) == fileName)
+                dup = true; // duplicated name
+            String baseName = getBaseName(fileName);
+            if (!dup)
+                fileName = baseName + ".jpg";
+            else {
+                Object[] args = { Integer.valueOf(slice) };
+                fileName = baseName + String.format("%05d", args) + ".jpg";
+            }
+        }
+        final FileSaver fs = new FileSaver(new ImagePlus(fileName, ip));
+        final String path = outputDir + File.separator + fileName;
+        final ImageProcessor ipSaved = ip;
+        final String name = fileName;
+        final int n = slice;
+        fs.setJpegQuality(jpegQuality);
+        if (writerPool == null) {
+            fs.saveAsJpeg(path);
+            cacheImage(ip, fileName, slice);
+        }
+        else
+            writerPool.execute(new Runnable() {
+                public void run() {
+                    fs.saveAsJpeg(path);
+                    cacheImage(ipSaved, name, n);
+                }
+            });
+    }
+
+
+    String getBaseName(String fileName) {
+        String baseName = fileName;
+        int index = fileName.lastIndexOf('.');
+        if (index >= 0)
+            baseName = fileName.substring(0, index);
+        return baseName;
+    }
+
+
+    double[][] estimateAffine(ImageProcessor ip,
+                              ImageProcessor ipRef,
+                              Workspace      ws,
+                              int            maxIter,
+                              double         tol)
+    {
+        return estimateAffine(ip, ipRef, null, ws, maxIter, tol);
+    }
+
+
+    /* Same as estimateTranslation, for an affine transformation */
+    double[][] estimateAffine(ImageProcessor ip,
+                              ImageProcessor ipRef,
+                              double[][]     wpPrediction,
+                              Workspace      ws,
+                              int            maxIter,
+                              double         tol)
+    {
+        double[][] wp = { {0.0, 0.0, 0.0 }, 
+                          {0.0, 0.0, 0.0} };
+
+        ws.iterations = 0;
+
+        // We operate on the gradient magnitude of the image
+        //   rather than on the original pixel intensity.
+        buildPyramids(ip, ipRef, ws);
+
+        int level = coarsestLevel(ws);
+
+        // the prediction is the starting guess on the coarsest level
+        if (wpPrediction != null) {
+            for (int i = 0; i < 3; ++i) {
+                wp[0][i] = wpPrediction[0][i];
+                wp[1][i] = wpPrediction[1][i];
+            }
+        }
+
+        scaleTranslation(wp, 1.0 / (1 << level));
+        for (; level > 0; --level) {
+            estimateAffine(wp, level, ws, maxIter, tol,
+                           minStep(wpPrediction, level));
+            scaleTranslation(wp, 2.0);
+        }
+        estimateAffine(wp, 0, ws, maxIter, tol);
+
+        return wp;
+    }
+
+
+    /* Pyramids of the image and of the template, with the derivatives of the latter */
+    void buildPyramids(ImageProcessor ip, ImageProcessor ipRef, Workspace ws) {
+        buildPyramid(ws.ipPyramid, ip);
+        buildPyramid(ws.ipRefPyramid, ipRef, ws.dxRef, ws.dyRef);
+    }
+
+
+    /* Coarsest level available in both pyramids of the workspace */
+    int coarsestLevel(Workspace ws) {
+        int level = 0;
+        while (level + 1 < ws.ipPyramid.length && ws.ipPyramid[level + 1] != null
+               && ws.ipRefPyramid[level + 1] != null)
+            ++level;
+        return level;
+    }
+
+
+    /**
+        Shortest step, in pixels of the given level, worth iterating for on
+        the coarse levels: the prediction already brings them close to the
+        solution, which only level 0 has to refine down to tol. 0 without a
+        prediction.
+    */
+    double minStep(double[][] wpPrediction, int level) {
+        return wpPrediction == null ? 0.0 : PREDICTION_STEP / (1 << level);
+    }
+
+
+    /* Scales the translation part of wp, from one pyramid level to another */
+    void scaleTranslation(double[][] wp, double scale) {
+        wp[0][wp[0].length - 1] *= scale;
+        wp[1][wp[1].length - 1] *= scale;
+    }
+
+
+    /* Refines wp, in place, on one level of the pyramids of the workspace */
+    double[][] estimateAffine(double[][] wp,
+                              int        level,
+                              Workspace  ws,
+                              int        maxIter,
+                              double     tol)
+    {
+        return estimateAffine(wp, level, ws, maxIter, tol, 0.0);
+    }
+
+
+    /* Same, stopping as well, when minStep is positive, at the first step
+       that is shorter than minStep pixels or does not lower the RMSE */
+    double[][] estimateAffine(double[][] wp,
+                              int        level,
+                              Workspace  ws,
+                              int        maxIter,
+                              double     tol,
+                              double     minStep)
+    {
+        ImageProcessor ip = ws.ipPyramid[level];
+        ImageProcessor ipRef = ws.ipRefPyramid[level];
+        ImageProcessor ipOut = ws.ipOut[level];
+
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int[] runs = ws.runs[level];
+
+        // derivatives of the template in sd[4] and sd[5]
+        float[][] sd = ws.sdPyramid[level];
+        for (int i = 0, y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x, ++i) {
+                sd[0][i] = sd[4][i] * x;
+                sd[1][i] = sd[5][i] * x;
+                sd[2][i] = sd[4][i] * y;
+                sd[3][i] = sd[5][i] * y;
+            }
+        }
+
+        double[] b = ws.b;
+        double[] dp = ws.dp;
+        double[][] d = ws.d;
+        double[][] w = ws.w;
+
+        double[][] bestWp = ws.bestWp;
         bestWp[0][0] = wp[0][0];
+        bestWp[0][1] = wp[0][1];
+        bestWp[0][2] = wp[0][2];
         bestWp[1][0] = wp[1][0];
+        bestWp[1][1] = wp[1][1];
+        bestWp[1][2] = wp[1][2];
 
-        double[][] d = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-
-        double[][] h = new double[2][2];
+        double[][] h = ws.h6;
 
-        h[0][0] = dotSum(dxRef, dxRef);
-        h[1][0] = dotSum(dxRef, dyRef);
-        h[0][1] = dotSum(dyRef, dxRef);
-        h[1][1] = dotSum(dyRef, dyRef);
+        for (int y = 0; y < 6; ++y) {
+            for (int x = 0; x < 6; ++x) {
+                h[y][x] = dotSum(sd[x], sd[y], runs);
+            }
+        }
+        // inverted once per level, not per iteration
         h = invert(h);
 
         double oldRmse = Double.MAX_VALUE;
         double minRmse = Double.MAX_VALUE;
 
         for (int iter = 0; iter < maxIter; ++iter) {
+            ++ws.iterations;
+
+            warpAffine(ipOut, ip, wp, runs, ws);
 
-            warpTranslation(ipOut, ip, wp);
+            // the error image, its RMSE and the right-hand side b, in one pass
+            double rmse = subtractDotSums(ipOut, ipRef, sd, 6, b, runs);
+
+            if (iter > 0) {
+                if (rmse < minRmse) {
+                    bestWp[0][0] = wp[0][0];
+                    bestWp[0][1] = wp[0][1];
+                    bestWp[0][2] = wp[0][2];
+                    bestWp[1][0] = wp[1][0];
+                    bestWp[1][1] = wp[1][1];
+                    bestWp[1][2] = wp[1][2];
+                    minRmse      = rmse;
+                }
+                else if (minStep > 0.0)
+                    break;
+                if (Math.abs((oldRmse - rmse) /
+                        (oldRmse + Double.MIN_VALUE)) < tol)
+                    break;
+            }
+            oldRmse = rmse;
+
+            prod(h, b, dp);
+
+            // largest displacement of the corners of the image
+            if (Math.max(Math.abs(dp[0]) * width + Math.abs(dp[2]) * height
+                             + Math.abs(dp[4]),
+                         Math.abs(dp[1]) * width + Math.abs(dp[3]) * height
+                             + Math.abs(dp[5])) < minStep)
+                break;
+
+            d[0][0] = dp[0] + 1.0;
+            d[0][1] = dp[2];
+            d[0][2] = dp[4];
+            d[1][0] = dp[1];
+            d[1][1] = dp[3] + 1.0;
+            d[1][2] = dp[5];
+            d[2][0] = 0.0;
+            d[2][1] = 0.0;
+            d[2][2] = 1.0;
+
+            w[0][0] = wp[0][0] + 1.0;
+            w[0][1] = wp[0][1];
+            w[0][2] = wp[0][2];
+            w[1][0] = wp[1][0];
+            w[1][1] = wp[1][1] + 1.0;
+            w[1][2] = wp[1][2];
+            w[2][0] = 0.0;
+            w[2][1] = 0.0;
+            w[2][2] = 1.0;
+
+            invertAffine(d, ws.dInv);
+            double[][] wd = prod(w, ws.dInv, ws.wd);
+
+            wp[0][0] = wd[0][0] - 1.0;
+            wp[0][1] = wd[0][1];
+            wp[0][2] = wd[0][2];
+            wp[1][0] = wd[1][0];
+            wp[1][1] = wd[1][1] - 1.0;
+            wp[1][2] = wd[1][2];
+        }
+
+        wp[0][0] = bestWp[0][0];
+        wp[0][1] = bestWp[0][1];
+        wp[0][2] = bestWp[0][2];
+        wp[1][0] = bestWp[1][0];
+        wp[1][1] = bestWp[1][1];
+        wp[1][2] = bestWp[1][2];
+        return wp;
+    }
+
+
+    double[][] estimateTranslation(ImageProcessor ip,
+                                   ImageProcessor ipRef,
+                                   Workspace      ws,
+                                   int            maxIter,
+                                   double         tol)
+    {
+        return estimateTranslation(ip, ipRef, null, ws, maxIter, tol);
+    }
+
+
+    /**
+        Estimates the translation of ip, starting from wpPrediction when it
+        is not null: from close to the solution, each level of the pyramid
+        only needs a few iterations.
+    */
+    double[][] estimateTranslation(ImageProcessor ip,
+                                   ImageProcessor ipRef,
+                                   double[][]     wpPrediction,
+                                   Workspace      ws,
+                                   int            maxIter,
+                                   double         tol)
+    {
+        double[][] wp = { {0.0}, {0.0} };
+
+        ws.iterations = 0;
+
+        // We operate on the gradient magnitude of the image
+        //   rather than on the original pixel intensity.
+        buildPyramids(ip, ipRef, ws);
+
+        int level = coarsestLevel(ws);
+
+        // the prediction is the starting guess on the coarsest level
+        if (wpPrediction != null) {
+            wp[0][0] = wpPrediction[0][0];
+            wp[1][0] = wpPrediction[1][0];
+        }
+
+        // Coarse to fine, the translation doubles from one level to the next
+        scaleTranslation(wp, 1.0 / (1 << level));
+        for (; level > 0; --level) {
+            estimateTranslation(wp, level, ws, maxIter, tol,
+                                minStep(wpPrediction, level));
+            scaleTranslation(wp, 2.0);
+        }
+        estimateTranslation(wp, 0, ws, maxIter, tol);
+
+        return wp;
+    }
+
+
+    /* Refines wp, in place, on one level of the pyramids of the workspace */
+    double[][] estimateTranslation(double[][] wp,
+                                   int        level,
+                                   Workspace  ws,
+                                   int        maxIter,
+                                   double     tol)
+    {
+        return estimateTranslation(wp, level, ws, maxIter, tol, 0.0);
+    }
+
+
+    /* Same, stopping as well, when minStep is positive, at the first step
+       that is shorter than minStep pixels or does not lower the RMSE */
+    double[][] estimateTranslation(double[][] wp,
+                                   int        level,
+                                   Workspace  ws,
+                                   int        maxIter,
+                                   double     tol,
+                                   double     minStep)
+    {
+        ImageProcessor ip = ws.ipPyramid[level];
+        ImageProcessor ipRef = ws.ipRefPyramid[level];
+        ImageProcessor ipOut = ws.ipOut[level];
+
+        int[] runs = ws.runs[level];
+
+        float[] dxRef = ws.dxRef[level];
+        float[] dyRef = ws.dyRef[level];
+
+        double[] b = ws.b;
+        double[] dp = ws.dp;
+
+        double[][] bestWp = ws.bestWp;
+        bestWp[0][0] = wp[0][0];
+        bestWp[1][0] = wp[1][0];
+
+        double[][] h = ws.h2;
+
+        h[0][0] = dotSum(dxRef, dxRef, runs);
+        h[1][0] = dotSum(dxRef, dyRef, runs);
+        h[0][1] = dotSum(dyRef, dxRef, runs);
+        h[1][1] = dotSum(dyRef, dyRef, runs);
+        h = invert(h);
+
+        double oldRmse = Double.MAX_VALUE;
+        double minRmse = Double.MAX_VALUE;
+
+        for (int iter = 0; iter < maxIter; ++iter) {
+            ++ws.iterations;
 
-            subtract(ipOut, ipRef);
+            warpTranslation(ipOut, ip, wp, runs, ws);
 
-            double rmse = rootMeanSquare(ipOut);
+            // the error image, its RMSE and the right-hand side b, in one pass
+            double rmse = subtractDotSums(ipOut, ipRef, ws.sdPyramid[level], 2, b, runs);
 
             if (iter > 0) {
                 if (rmse < minRmse) {
@@ -774,94 +2029,1031 @@ public class Image_Stabilizer implements PlugInFilter {
                     bestWp[1][0] = wp[1][0];
                     minRmse      = rmse;
                 }
+                else if (minStep > 0.0)
+                    break;
                 if (Math.abs((oldRmse - rmse) /
                         (oldRmse + Double.MIN_VALUE)) < tol)
                     break;
             }
             oldRmse = rmse;
 
-            float[] error = (float[])ipOut.getPixels();
+            prod(h, b, dp);
+
+            if (Math.abs(dp[0]) + Math.abs(dp[1]) < minStep)
+                break;
+
+            // Composing with the inverse of a translation
+            //   is subtracting it
+            wp[0][0] -= dp[0];
+            wp[1][0] -= dp[1];
+        }
+
+        wp[0][0] = bestWp[0][0];
+        wp[1][0] = bestWp[1][0];
+        return wp;
+    }
+    
+    
+    /**
+        Translation estimated by phase correlation, without iterating.
+
+        The normalised cross-power spectrum of the gradient magnitudes of the
+        image and of the template is computed on the finest level of the
+        gradient pyramid that is at most PHASE_SIZE pixels, whatever the
+        number of levels of Lucas-Kanade, and its inverse peaks at the shift
+        between both. The peak is located with sub-pixel accuracy by fitting
+        a sinc through its neighbours. When Refine_with_Lucas-Kanade is set, the shift is then
+        used as the starting point of the Lucas-Kanade iterations on the finer
+        levels of the pyramid; otherwise a second phase correlation, on a
+        window of level 0, brings it to full resolution accuracy, unless the
+        mask leaves too little of any window, when Lucas-Kanade does.
+    */
+    double[][] estimatePhaseCorrelation(ImageProcessor ip,
+                                        ImageProcessor ipRef,
+                                        Workspace      ws,
+                                        int            maxIter,
+                                        double         tol)
+    {
+        ImageProcessor[] ipPyramid = ws.ipPyramid;
+        ImageProcessor[] ipRefPyramid = ws.ipRefPyramid;
 
-            dp[0] = dotSum(dxRef, error);
-            dp[1] = dotSum(dyRef, error);
+        ws.iterations = 0;
 
-            dp = prod(h, dp);
+        // We operate on the gradient magnitude of the image
+        //   rather than on the original pixel intensity.
+        //   The derivatives of the template are only needed by Lucas-Kanade.
+        if (refine)
+            buildPyramids(ip, ipRef, ws);
+        else {
+            buildPyramid(ws.ipPyramid, ip);
+            buildPyramid(ws.ipRefPyramid, ipRef);
+        }
 
-            d[0][0] = 1.0; d[0][1] = 0.0; d[0][2] = dp[0];
-            d[1][0] = 0.0; d[1][1] = 1.0; d[1][2] = dp[1];
-            d[2][0] = 0.0; d[2][1] = 0.0; d[2][2] = 1.0;
+        int level = coarsestLevel(ws);
+        while (level > 0 && Math.max(ipPyramid[level - 1].getWidth(),
+                                     ipPyramid[level - 1].getHeight()) <= PHASE_SIZE)
+            --level;
 
-            w[0][0] = 1.0; w[0][1] = 0.0; w[0][2] = wp[0][0];
-            w[1][0] = 0.0; w[1][1] = 1.0; w[1][2] = wp[1][0];
-            w[2][0] = 0.0; w[2][1] = 0.0; w[2][2] = 1.0;
+        double[][] wp = phaseCorrelation(ipPyramid[level], ipRefPyramid[level], ws);
+        scaleTranslation(wp, 1 << level);
 
-            w = prod(w, invert(d));
+        if (!refine) {
+            if (level == 0 || refinePhaseCorrelation(wp, ws))
+                return wp;
+            // too little of the mask for a window: Lucas-Kanade on the mask
+            buildPyramid(ws.ipRefPyramid, ipRef, ws.dxRef, ws.dyRef);
+        }
 
-            wp[0][0] = w[0][2];
-            wp[1][0] = w[1][2];
+        // Refine the estimate on the finer levels, within pyramidLevel
+        int top = Math.max(0, Math.min(level - 1, pyramidLevel));
+        scaleTranslation(wp, 1.0 / (1 << top));
+        for (int l = top; l > 0; --l) {
+            estimateTranslation(wp, l, ws, maxIter, tol);
+            scaleTranslation(wp, 2.0);
         }
+        estimateTranslation(wp, 0, ws, maxIter, tol);
 
-        return bestWp;
+        return wp;
     }
-    
-    
+
+
+    /**
+        Refines, in place, a translation wp of level 0 by phase correlation
+        on a window of at most PHASE_WINDOW pixels, the window of the image
+        being moved by wp: the residual shift is a few pixels, found with
+        sub-pixel accuracy at full resolution for the cost of small FFTs.
+        The window is at the centre of the image or, with a mask, where the
+        mask covers the most pixels. Returns false, leaving wp as is, when
+        no window fits or the mask covers less than MIN_PHASE_COVERAGE of it.
+    */
+    boolean refinePhaseCorrelation(double[][] wp, Workspace ws) {
+        ImageProcessor ip = ws.ipPyramid[0];
+        ImageProcessor ipRef = ws.ipRefPyramid[0];
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int dx = (int)Math.round(wp[0][0]);
+        int dy = (int)Math.round(wp[1][0]);
+
+        // the window must be in the template and, moved by (dx, dy), in the image
+        int size = PHASE_WINDOW;
+        while (size > 16 && (size > width - Math.abs(dx) || size > height - Math.abs(dy)))
+            size /= 2;
+        if (size > width - Math.abs(dx) || size > height - Math.abs(dy))
+            return false;
+        int xMin = Math.max(0, -dx);
+        int xMax = Math.min(width, width - dx) - size;
+        int yMin = Math.max(0, -dy);
+        int yMax = Math.min(height, height - dy) - size;
+        int x = Math.max(xMin, Math.min(xMax, (width - size) / 2));
+        int y = Math.max(yMin, Math.min(yMax, (height - size) / 2));
+
+        if (mask != null) {
+            // Windows a quarter of their size apart, the most covered one
+            //   (the closest to the centre among equals)
+            int step = size / 4;
+            int best = -1;
+            int bestDistance = 0;
+            for (int j = 0; j <= (yMax - yMin + step - 1) / step; ++j) {
+                int wy = Math.min(yMin + j * step, yMax);
+                for (int i = 0; i <= (xMax - xMin + step - 1) / step; ++i) {
+                    int wx = Math.min(xMin + i * step, xMax);
+                    int covered = maskCount(wx, wy, size, width, height);
+                    int distance = Math.abs(2 * wx + size - width)
+                        + Math.abs(2 * wy + size - height);
+                    if (covered > best || covered == best && distance < bestDistance) {
+                        best = covered;
+                        bestDistance = distance;
+                        x = wx;
+                        y = wy;
+                    }
+                }
+            }
+            if (best < MIN_PHASE_COVERAGE * size * size)
+                return false;
+        }
+
+        double[][] residual = phaseCorrelation(ip, ipRef, x, y, dx, dy, size, size, ws);
+        wp[0][0] = dx + residual[0][0];
+        wp[1][0] = dy + residual[1][0];
+        return true;
+    }
+
+
+    /* Sums the mask over blocks of MASK_BLOCK pixels into maskSums */
+    void sumMask() {
+        int maskWidth = mask.getWidth();
+        int maskHeight = mask.getHeight();
+        int blocksX = (maskWidth + MASK_BLOCK - 1) / MASK_BLOCK;
+        int blocksY = (maskHeight + MASK_BLOCK - 1) / MASK_BLOCK;
+        byte[] pixels = (byte[])mask.getPixels();
+
+        maskSumsWidth = blocksX + 1;
+        maskSums = new int[maskSumsWidth * (blocksY + 1)];
+        for (int y = 0; y < maskHeight; ++y) {
+            for (int x = 0; x < maskWidth; ++x) {
+                if (pixels[y * maskWidth + x] != 0)
+                    ++maskSums[(y / MASK_BLOCK + 1) * maskSumsWidth + x / MASK_BLOCK + 1];
+            }
+        }
+        for (int by = 1; by <= blocksY; ++by) {
+            for (int bx = 1; bx <= blocksX; ++bx) {
+                maskSums[by * maskSumsWidth + bx] += maskSums[(by - 1) * maskSumsWidth + bx]
+                    + maskSums[by * maskSumsWidth + bx - 1]
+                    - maskSums[(by - 1) * maskSumsWidth + bx - 1];
+            }
+        }
+    }
+
+
+    /* Approximate number of pixels of the mask in the square window of the
+       given size at (x, y), in an image of width x height pixels, to the
+       nearest blocks */
+    int maskCount(int x, int y, int size, int width, int height) {
+        int maskWidth = mask.getWidth();
+        int maskHeight = mask.getHeight();
+        int bx0 = Math.round((float)x * maskWidth / width / MASK_BLOCK);
+        int by0 = Math.round((float)y * maskHeight / height / MASK_BLOCK);
+        int bx1 = Math.min(maskSumsWidth - 1,
+            Math.round((float)(x + size) * maskWidth / width / MASK_BLOCK));
+        int by1 = Math.min(maskSums.length / maskSumsWidth - 1,
+            Math.round((float)(y + size) * maskHeight / height / MASK_BLOCK));
+        long count = (long)maskSums[by1 * maskSumsWidth + bx1]
+            - maskSums[by0 * maskSumsWidth + bx1]
+            - maskSums[by1 * maskSumsWidth + bx0]
+            + maskSums[by0 * maskSumsWidth + bx0];
+        // back to pixels of the image
+        return (int)(count * width / maskWidth * height / maskHeight);
+    }
+
+
+    double[][] phaseCorrelation(ImageProcessor ip, ImageProcessor ipRef, Workspace ws) {
+        return phaseCorrelation(ip, ipRef, 0, 0, 0, 0,
+                                ip.getWidth(), ip.getHeight(), ws);
+    }
+
+
+    /**
+        Shift of the window of ip at (x0 + dx, y0 + dy) from the window of
+        ipRef at (x0, y0), both of width x height pixels: the translation of
+        ip is that shift plus (dx, dy). The pixels outside the mask are left
+        out.
+    */
+    double[][] phaseCorrelation(ImageProcessor ip, ImageProcessor ipRef,
+                                int x0, int y0, int dx, int dy,
+                                int width, int height, Workspace ws) {
+        // FFT size: next powers of 2
+        int fftWidth = 1;
+        while (fftWidth < width) fftWidth *= 2;
+        int fftHeight = 1;
+        while (fftHeight < height) fftHeight *= 2;
+        int n = fftWidth * fftHeight;
+
+        // the buffers fit the largest of the coarse level and of the window
+        if (ws.re == null || ws.re.length < n) {
+            ws.re = new float[n];
+            ws.im = new float[n];
+            ws.reRef = new float[n];
+            ws.imRef = new float[n];
+        }
+        if (ws.lineRe == null || ws.lineRe.length < Math.max(fftWidth, fftHeight)) {
+            ws.lineRe = new double[Math.max(fftWidth, fftHeight)];
+            ws.lineIm = new double[Math.max(fftWidth, fftHeight)];
+        }
+        float[] re = ws.re;
+        float[] im = ws.im;
+        float[] reRef = ws.reRef;
+        float[] imRef = ws.imRef;
+        Arrays.fill(im, 0, n, 0f);
+        Arrays.fill(imRef, 0, n, 0f);
+
+        // Remove the mean and taper the borders with a Hann window
+        //   to avoid the spurious peak at the origin caused by the edges
+        windowInto(re, fftWidth, fftHeight, ip, x0, y0, dx, dy, width, height);
+        windowInto(reRef, fftWidth, fftHeight, ipRef, x0, y0, 0, 0, width, height);
+
+        fft2(re, im, fftWidth, fftHeight, false, ws);
+        fft2(reRef, imRef, fftWidth, fftHeight, false, ws);
+
+        // Normalised cross-power spectrum: F . conj(Fref) / |F . conj(Fref)|
+        for (int i = 0; i < n; ++i) {
+            double r = re[i] * reRef[i] + im[i] * imRef[i];
+            double c = im[i] * reRef[i] - re[i] * imRef[i];
+            double mod = Math.sqrt(r * r + c * c);
+            if (mod > 0) {
+                re[i] = (float)(r / mod);
+                im[i] = (float)(c / mod);
+            }
+            else {
+                re[i] = 0f;
+                im[i] = 0f;
+            }
+        }
+
+        fft2(re, im, fftWidth, fftHeight, true, ws);
+
+        // Find the correlation peak
+        int peak = 0;
+        for (int i = 1; i < n; ++i) {
+            if (re[i] > re[peak])
+                peak = i;
+        }
+        int px = peak % fftWidth;
+        int py = peak / fftWidth;
+
+        // Sub-pixel position from the neighbours, the correlation being
+        //   a sampled sinc (and periodic, hence the wrapping)
+        double x = px + sincPeak(
+            re[py * fftWidth + (px + fftWidth - 1) % fftWidth],
+            re[peak],
+            re[py * fftWidth + (px + 1) % fftWidth]);
+        double y = py + sincPeak(
+            re[((py + fftHeight - 1) % fftHeight) * fftWidth + px],
+            re[peak],
+            re[((py + 1) % fftHeight) * fftWidth + px]);
+
+        // Shifts beyond half the size are negative shifts
+        if (x > fftWidth / 2) x -= fftWidth;
+        if (y > fftHeight / 2) y -= fftHeight;
+
+        double[][] wp = { {x}, {y} };
+        return wp;
+    }
+
+
+    /**
+        Offset of the maximum of a sinc sampled at -1, 0 and 1 (Foroosh et
+        al. 2002): the peak of a phase correlation is the sinc of the shift,
+        which a parabola would pull towards the nearest pixel.
+    */
+    double sincPeak(double left, double center, double right) {
+        double side = Math.max(left, right);
+        if (side <= 0.0 || center <= 0.0)
+            return 0.0;
+        double offset = side / (side + center);
+        return left > right ? -offset : offset;
+    }
+
+
+    double parabolicPeak(double left, double center, double right) {
+        double d = left - 2 * center + right;
+        if (d >= 0)
+            return 0.0;
+        return 0.5 * (left - right) / d;
+    }
+
+
+    /**
+        Copies the window of ip at (x0 + dx, y0 + dy) into out, less its mean
+        and tapered by a Hann window. The mask is taken at (x0, y0), in the
+        coordinates of the template: the pixels outside it are zeroed.
+    */
+    void windowInto(float[] out, int outWidth, int outHeight, ImageProcessor ip,
+                    int x0, int y0, int dx, int dy, int width, int height) {
+        int ipWidth = ip.getWidth();
+        int ipHeight = ip.getHeight();
+        float[] pixels = (float[])ip.getPixels();
+
+        Arrays.fill(out, 0, outWidth * outHeight, 0f);
+
+        double mean = 0.0;
+        int count = 0;
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                if (mask != null && mask.get((x0 + x) * mask.getWidth() / ipWidth,
+                        (y0 + y) * mask.getHeight() / ipHeight) == 0)
+                    continue;
+                mean += pixels[(y0 + dy + y) * ipWidth + x0 + dx + x];
+                ++count;
+            }
+        }
+        if (count == 0)
+            return;
+        mean /= count;
+
+        for (int y = 0; y < height; ++y) {
+            double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * y / (height - 1));
+            for (int x = 0; x < width; ++x) {
+                if (mask != null && mask.get((x0 + x) * mask.getWidth() / ipWidth,
+                        (y0 + y) * mask.getHeight() / ipHeight) == 0)
+                    continue;
+                double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * x / (width - 1));
+                out[y * outWidth + x] = (float)(
+                    (pixels[(y0 + dy + y) * ipWidth + x0 + dx + x] - mean) * wx * wy);
+            }
+        }
+    }
+
+
+    /* In-place 2D FFT, rows then columns; the size must be powers of 2 */
+    void fft2(float[] re, float[] im, int width, int height, boolean inverse,
+              Workspace ws) {
+        double[] rowRe = ws.lineRe;
+        double[] rowIm = ws.lineIm;
+        for (int y = 0; y < height; ++y) {
+            int offset = y * width;
+            for (int x = 0; x < width; ++x) {
+                rowRe[x] = re[offset + x];
+                rowIm[x] = im[offset + x];
+            }
+            fft(rowRe, rowIm, width, inverse);
+            for (int x = 0; x < width; ++x) {
+                re[offset + x] = (float)rowRe[x];
+                im[offset + x] = (float)rowIm[x];
+            }
+        }
+
+        double[] colRe = ws.lineRe;
+        double[] colIm = ws.lineIm;
+        for (int x = 0; x < width; ++x) {
+            for (int y = 0; y < height; ++y) {
+                colRe[y] = re[y * width + x];
+                colIm[y] = im[y * width + x];
+            }
+            fft(colRe, colIm, height, inverse);
+            for (int y = 0; y < height; ++y) {
+                re[y * width + x] = (float)colRe[y];
+                im[y * width + x] = (float)colIm[y];
+            }
+        }
+    }
+
+
+    /* In-place iterative radix-2 FFT (unscaled) of the first n elements */
+    void fft(double[] re, double[] im, int n, boolean inverse) {
+
+        // Bit reversal permutation
+        for (int i = 1, j = 0; i < n; ++i) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        // Butterflies
+        for (int len = 2; len <= n; len <<= 1) {
+            double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+            double wRe = Math.cos(angle);
+            double wIm = Math.sin(angle);
+            for (int i = 0; i < n; i += len) {
+                double uRe = 1.0;
+                double uIm = 0.0;
+                for (int k = 0; k < len / 2; ++k) {
+                    int a = i + k;
+                    int b = i + k + len / 2;
+                    double vRe = re[b] * uRe - im[b] * uIm;
+                    double vIm = re[b] * uIm + im[b] * uRe;
+                    re[b] = re[a] - vRe;
+                    im[b] = im[a] - vIm;
+                    re[a] += vRe;
+                    im[a] += vIm;
+                    double t = uRe * wRe - uIm * wIm;
+                    uIm = uRe * wIm + uIm * wRe;
+                    uRe = t;
+                }
+            }
+        }
+    }
+
+
+    /**
+        Affine transformation estimated from matched keypoints.
+
+        Corners are detected in the gradient magnitude of the image and of
+        the template, at full resolution: the coarser levels of the pyramid
+        are subsampled and corners do not survive that. They are matched
+        by normalised cross-correlation of the patches around them, wherever
+        they are in the image, so large jolts are recovered as well as small
+        drifts. The affine transformation is fitted on the matches with
+        RANSAC, which discards the wrong matches and those on objects moving
+        in the frame. Apart from the detection, the cost depends on the
+        number of keypoints rather than on the number of pixels. When
+        Refine_with_Lucas-Kanade is set, the transformation is then refined
+        with the dense affine estimation, which is also used instead when
+        too few keypoints match.
+    */
+    double[][] estimateFeatures(ImageProcessor ip,
+                                ImageProcessor ipRef,
+                                Workspace      ws,
+                                int            maxIter,
+                                double         tol)
+    {
+        ImageProcessor[] ipPyramid = ws.ipPyramid;
+        ImageProcessor[] ipRefPyramid = ws.ipRefPyramid;
+
+        ws.iterations = 0;
+
+        // We operate on the gradient magnitude of the image
+        //   rather than on the original pixel intensity.
+        buildPyramids(ip, ipRef, ws);
+
+        if (ws.kx == null) {
+            ws.kx = new double[MAX_KEYPOINTS];
+            ws.ky = new double[MAX_KEYPOINTS];
+            ws.kxRef = new double[MAX_KEYPOINTS];
+            ws.kyRef = new double[MAX_KEYPOINTS];
+            int patchSize = (2 * PATCH_RADIUS + 1) * (2 * PATCH_RADIUS + 1);
+            ws.patches = new float[MAX_KEYPOINTS * patchSize];
+            ws.patchesRef = new float[MAX_KEYPOINTS * patchSize];
+            ws.matches = new int[MAX_KEYPOINTS];
+            ws.matchesRef = new int[MAX_KEYPOINTS];
+            ws.scoresRef = new double[MAX_KEYPOINTS];
+            ws.inliers = new boolean[MAX_KEYPOINTS];
+            ws.bestInliers = new boolean[MAX_KEYPOINTS];
+            ws.matched = new int[MAX_KEYPOINTS];
+            ws.affine = new double[2][3];
+            ws.random = new Random();
+        }
+
+        int n = detectKeypoints(ipPyramid[0], ws, ws.kx, ws.ky, ws.patches);
+        int nRef = detectKeypoints(ipRefPyramid[0], ws, ws.kxRef, ws.kyRef, ws.patchesRef);
+        matchKeypoints(ws, n, nRef);
+
+        double[][] wp = { {0.0, 0.0, 0.0 },
+                          {0.0, 0.0, 0.0} };
+        if (!fitAffineRansac(ws, n, wp))
+            return estimateAffine(ip, ipRef, ws, maxIter, tol);
+
+        if (refine)
+            estimateAffine(wp, 0, ws, maxIter, tol);
+
+        return wp;
+    }
+
+
+    /**
+        Detects up to MAX_KEYPOINTS corners in ip and stores their position
+        and the normalised patch around them. Corners are the strongest local
+        maxima of the smallest eigenvalue of the structure tensor (Shi and
+        Tomasi). Returns the number of keypoints.
+    */
+    int detectKeypoints(ImageProcessor ip,
+                        Workspace      ws,
+                        double[]       kx,
+                        double[]       ky,
+                        float[]        patches)
+    {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        float[] pixels = (float[])ip.getPixels();
+
+        // structure tensor, summed over the window of the detector
+        float[][] sd = ws.sd;
+        float[] dx = sd[4];
+        float[] dy = sd[5];
+        derivatives(ip, dx, dy);
+        for (int i = 0; i < width * height; ++i) {
+            sd[0][i] = dx[i] * dx[i];
+            sd[1][i] = dx[i] * dy[i];
+            sd[2][i] = dy[i] * dy[i];
+        }
+        for (int k = 0; k < 3; ++k)
+            boxFilter(sd[k], sd[3], width, height, CORNER_RADIUS);
+
+        // corner response, in place of dx
+        float[] response = sd[4];
+        double maxResponse = 0.0;
+        for (int i = 0; i < width * height; ++i) {
+            double a = sd[0][i];
+            double b = sd[1][i];
+            double c = sd[2][i];
+            double r = 0.5 * (a + c) - Math.sqrt(0.25 * (a - c) * (a - c) + b * b);
+            response[i] = (float)r;
+            if (r > maxResponse)
+                maxResponse = r;
+        }
+
+        // Candidates are the local maxima of the response. They are ranked by
+        //   response, packed with their index in longs (the bits of a
+        //   positive float sort like the float) so that a single sort is needed
+        int margin = PATCH_RADIUS + CORNER_RADIUS + 1;
+        int nCandidates = 0;
+        for (int y = margin; y < height - margin; ++y) {
+            for (int x = margin; x < width - margin; ++x) {
+                int i = y * width + x;
+                float r = response[i];
+                if (r <= 0.01 * maxResponse
+                    || r < response[i - 1] || r <= response[i + 1]
+                    || r < response[i - width] || r <= response[i + width]
+                    || r < response[i - width - 1] || r <= response[i + width + 1]
+                    || r < response[i - width + 1] || r <= response[i + width - 1])
+                    continue;
+                if (mask != null && mask.get(x * mask.getWidth() / width,
+                        y * mask.getHeight() / height) == 0)
+                    continue;
+                if (ws.candidates == null || nCandidates == ws.candidates.length) {
+                    long[] candidates = new long[Math.max(1024, 2 * nCandidates)];
+                    if (ws.candidates != null)
+                        System.arraycopy(ws.candidates, 0, candidates, 0, nCandidates);
+                    ws.candidates = candidates;
+                }
+                ws.candidates[nCandidates++] =
+                    ((long)Float.floatToIntBits(r) << 32) | i;
+            }
+        }
+        if (nCandidates == 0)
+            return 0;
+        Arrays.sort(ws.candidates, 0, nCandidates);
+
+        // Keep the strongest ones, not too close to each other
+        //   so that they spread over the image
+        int minDistance = 2 * PATCH_RADIUS;
+        int n = 0;
+        for (int c = nCandidates - 1; c >= 0 && n < MAX_KEYPOINTS; --c) {
+            int i = (int)ws.candidates[c];
+            int x = i % width;
+            int y = i / width;
+            boolean isolated = true;
+            for (int k = 0; k < n && isolated; ++k) {
+                isolated = Math.abs(kx[k] - x) >= minDistance
+                    || Math.abs(ky[k] - y) >= minDistance;
+            }
+            if (!isolated || !storePatch(pixels, width, x, y, patches, n))
+                continue;
+            double r = response[i];
+            kx[n] = x + parabolicPeak(response[i - 1], r, response[i + 1]);
+            ky[n] = y + parabolicPeak(response[i - width], r, response[i + width]);
+            ++n;
+        }
+        return n;
+    }
+
+
+    /* Box filter of the given radius, with the edges repeated; tmp is used as buffer */
+    void boxFilter(float[] pixels, float[] tmp, int width, int height, int radius) {
+        for (int y = 0; y < height; ++y) {
+            int offset = y * width;
+            for (int x = 0; x < width; ++x) {
+                float sum = 0f;
+                for (int k = -radius; k <= radius; ++k) {
+                    int xx = Math.min(Math.max(x + k, 0), width - 1);
+                    sum += pixels[offset + xx];
+                }
+                tmp[offset + x] = sum;
+            }
+        }
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                float sum = 0f;
+                for (int k = -radius; k <= radius; ++k) {
+                    int yy = Math.min(Math.max(y + k, 0), height - 1);
+                    sum += tmp[yy * width + x];
+                }
+                pixels[y * width + x] = sum;
+            }
+        }
+    }
+
+
+    /**
+        Stores the patch around (x, y) as keypoint k, with zero mean and unit
+        norm so that the dot product of two patches is their correlation.
+        Returns false for a flat patch, which cannot be matched.
+    */
+    boolean storePatch(float[] pixels, int width, int x, int y, float[] patches, int k) {
+        int size = 2 * PATCH_RADIUS + 1;
+        int offset = k * size * size;
+        double mean = 0.0;
+        for (int j = -PATCH_RADIUS; j <= PATCH_RADIUS; ++j) {
+            for (int i = -PATCH_RADIUS; i <= PATCH_RADIUS; ++i)
+                mean += pixels[(y + j) * width + x + i];
+        }
+        mean /= size * size;
+        double norm = 0.0;
+        for (int p = offset, j = -PATCH_RADIUS; j <= PATCH_RADIUS; ++j) {
+            for (int i = -PATCH_RADIUS; i <= PATCH_RADIUS; ++i, ++p) {
+                double v = pixels[(y + j) * width + x + i] - mean;
+                patches[p] = (float)v;
+                norm += v * v;
+            }
+        }
+        if (norm <= 0.0)
+            return false;
+        float scale = (float)(1.0 / Math.sqrt(norm));
+        for (int p = offset; p < offset + size * size; ++p)
+            patches[p] *= scale;
+        return true;
+    }
+
+
+    /**
+        Matches each keypoint of the image with the keypoint of the template
+        whose patch correlates best with its own, wherever it is. A match is
+        kept when it is mutual, correlated enough and clearly better than the
+        second best candidate (Lowe's ratio test, on the distance between the
+        normalised patches). ws.matches[k] is the index of the match of
+        keypoint k in the template, or -1.
+    */
+    void matchKeypoints(Workspace ws, int n, int nRef) {
+        int size = (2 * PATCH_RADIUS + 1) * (2 * PATCH_RADIUS + 1);
+        float[] patches = ws.patches;
+        float[] patchesRef = ws.patchesRef;
+        int[] matches = ws.matches;
+        int[] matchesRef = ws.matchesRef;
+        double[] scoresRef = ws.scoresRef;
+
+        Arrays.fill(matchesRef, 0, nRef, -1);
+        Arrays.fill(scoresRef, 0, nRef, -1.0);
+
+        for (int k = 0; k < n; ++k) {
+            double best = -1.0;
+            double second = -1.0;
+            matches[k] = -1;
+            for (int r = 0; r < nRef; ++r) {
+                double score = dotSum(patches, k * size, patchesRef, r * size, size);
+                if (score > best) {
+                    second = best;
+                    best = score;
+                    matches[k] = r;
+                }
+                else if (score > second)
+                    second = score;
+                if (score > scoresRef[r]) {
+                    scoresRef[r] = score;
+                    matchesRef[r] = k;
+                }
+            }
+            // distance between unit patches: sqrt(2 - 2 correlation)
+            if (best < 0.7 || 2.0 - 2.0 * best > 0.64 * (2.0 - 2.0 * second))
+                matches[k] = -1;
+        }
+        for (int k = 0; k < n; ++k) {
+            if (matches[k] >= 0 && matchesRef[matches[k]] != k)
+                matches[k] = -1;
+        }
+    }
+
+
+    double dotSum(float[] p1, int offset1, float[] p2, int offset2, int n) {
+        return kernels.dotSum(p1, offset1, p2, offset2, n);
+    }
+
+
+    /**
+        Fits the affine transformation mapping the template keypoints onto
+        their match in the image with RANSAC: transformations through three
+        random matches are tried, the one most matches agree with is fitted
+        again on all these matches by least squares. The random generator is
+        seeded so that results are reproducible. Returns false when fewer
+        than MIN_INLIERS matches agree.
+    */
+    boolean fitAffineRansac(Workspace ws, int n, double[][] wp) {
+        int[] matches = ws.matches;
+        boolean[] inliers = ws.inliers;
+        boolean[] bestInliers = ws.bestInliers;
+
+        // indices of the matched keypoints
+        int[] matched = ws.matched;
+        int nMatched = 0;
+        for (int k = 0; k < n; ++k) {
+            if (matches[k] >= 0)
+                matched[nMatched++] = k;
+        }
+        if (nMatched < MIN_INLIERS)
+            return false;
+
+        double[][] a = ws.affine;
+        int bestCount = 0;
+        // the same samples for the same slice, whichever thread stabilizes it
+        Random random = ws.random;
+        random.setSeed(0);
+        for (int iter = 0; iter < RANSAC_ITERATIONS; ++iter) {
+            int k1 = matched[random.nextInt(nMatched)];
+            int k2 = matched[random.nextInt(nMatched)];
+            int k3 = matched[random.nextInt(nMatched)];
+            Arrays.fill(inliers, 0, n, false);
+            inliers[k1] = true;
+            inliers[k2] = true;
+            inliers[k3] = true;
+            if (k1 == k2 || k2 == k3 || k1 == k3 || !fitAffine(ws, n, inliers, a))
+                continue;
+            int count = countInliers(ws, n, a, inliers);
+            if (count > bestCount) {
+                bestCount = count;
+                System.arraycopy(inliers, 0, bestInliers, 0, n);
+            }
+        }
+        if (bestCount < MIN_INLIERS || !fitAffine(ws, n, bestInliers, a))
+            return false;
+        // once more with the matches the least squares fit agrees with
+        if (countInliers(ws, n, a, inliers) >= MIN_INLIERS)
+            fitAffine(ws, n, inliers, a);
+
+        wp[0][0] = a[0][0] - 1.0;
+        wp[0][1] = a[0][1];
+        wp[0][2] = a[0][2];
+        wp[1][0] = a[1][0];
+        wp[1][1] = a[1][1] - 1.0;
+        wp[1][2] = a[1][2];
+        return true;
+    }
+
+
+    /* Marks the matches a maps within RANSAC_THRESHOLD of their keypoint and counts them */
+    int countInliers(Workspace ws, int n, double[][] a, boolean[] inliers) {
+        int count = 0;
+        double threshold = RANSAC_THRESHOLD * RANSAC_THRESHOLD;
+        for (int k = 0; k < n; ++k) {
+            inliers[k] = false;
+            int r = ws.matches[k];
+            if (r < 0)
+                continue;
+            double x = ws.kxRef[r];
+            double y = ws.kyRef[r];
+            double ex = a[0][0] * x + a[0][1] * y + a[0][2] - ws.kx[k];
+            double ey = a[1][0] * x + a[1][1] * y + a[1][2] - ws.ky[k];
+            if (ex * ex + ey * ey < threshold) {
+                inliers[k] = true;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+        Least squares affine transformation a mapping the template keypoints
+        onto the image keypoints, over the selected matches. Returns false
+        when they are (nearly) aligned and do not determine it.
+    */
+    boolean fitAffine(Workspace ws, int n, boolean[] selected, double[][] a) {
+        double[][] m = ws.d;
+        double[] bx = ws.b;
+        double[] by = ws.dp;
+        for (int j = 0; j < 3; ++j) {
+            Arrays.fill(m[j], 0.0);
+            bx[j] = 0.0;
+            by[j] = 0.0;
+        }
+        for (int k = 0; k < n; ++k) {
+            if (!selected[k])
+                continue;
+            double x = ws.kxRef[ws.matches[k]];
+            double y = ws.kyRef[ws.matches[k]];
+            m[0][0] += x * x;   m[0][1] += x * y;   m[0][2] += x;
+                                m[1][1] += y * y;   m[1][2] += y;
+                                                    m[2][2] += 1.0;
+            bx[0] += x * ws.kx[k];  bx[1] += y * ws.kx[k];  bx[2] += ws.kx[k];
+            by[0] += x * ws.ky[k];  by[1] += y * ws.ky[k];  by[2] += ws.ky[k];
+        }
+        m[1][0] = m[0][1];
+        m[2][0] = m[0][2];
+        m[2][1] = m[1][2];
+
+        // Cramer's rule
+        double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+        double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+        double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+        double det = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+        if (Math.abs(det) < 1e-6 * m[2][2] * m[2][2] * m[2][2])
+            return false;
+        double[][] inv = ws.dInv;
+        inv[0][0] = c00 / det;
+        inv[0][1] = (m[0][2] * m[2][1] - m[0][1] * m[2][2]) / det;
+        inv[0][2] = (m[0][1] * m[1][2] - m[0][2] * m[1][1]) / det;
+        inv[1][0] = c01 / det;
+        inv[1][1] = (m[0][0] * m[2][2] - m[0][2] * m[2][0]) / det;
+        inv[1][2] = (m[0][2] * m[1][0] - m[0][0] * m[1][2]) / det;
+        inv[2][0] = c02 / det;
+        inv[2][1] = (m[0][1] * m[2][0] - m[0][0] * m[2][1]) / det;
+        inv[2][2] = (m[0][0] * m[1][1] - m[0][1] * m[1][0]) / det;
+
+        for (int j = 0; j < 3; ++j) {
+            a[0][j] = inv[j][0] * bx[0] + inv[j][1] * bx[1] + inv[j][2] * bx[2];
+            a[1][j] = inv[j][0] * by[0] + inv[j][1] * by[1] + inv[j][2] * by[2];
+        }
+        return true;
+    }
+
+
     void gradient(ImageProcessor ipOut, ImageProcessor ip) {
         int width = ip.getWidth();
         int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
         float[] outPixels = (float[])ipOut.getPixels();
 
-        for (int y = 1; y + 1 < height; ++y) {
-            int offset = 1 + y * width;
-
-            //
-            // nw---n---ne
-            //  |   |   |
-            //  w---o---e
-            //  |   |   |
-            // sw---s---se
-            //
-
-            double p1 = 0f;
-            double p2 = pixels[offset - width - 1]; // nw
-            double p3 = pixels[offset - width];     // n
-            double p4 = 0f;                         // ne
-            double p5 = pixels[offset - 1];         // w
-            double p6 = pixels[offset];             // o
-            double p7 = 0f;                         // e
-            double p8 = pixels[offset + width - 1]; // sw
-            double p9 = pixels[offset + width];     // s
+        for (int y = 1; y + 1 < height; ++y)
+            gradientRow(outPixels, pixels, width, y);
+    }
 
-            for (int x = 1; x + 1 < width; ++x) {
-                p1 = p2; p2 = p3; p3 = pixels[offset - width + 1];
-                p4 = p5; p5 = p6; p6 = pixels[offset + 1];
-                p7 = p8; p8 = p9; p9 = pixels[offset + width + 1];
-                double a = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
-                double b = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
-                outPixels[offset++] = (float)Math.sqrt(a * a + b * b);
+
+    /* Sobel gradient magnitude of row y, which has rows above and below */
+    void gradientRow(float[] outPixels, float[] pixels, int width, int y) {
+        int offset = 1 + y * width;
+
+        //
+        // nw---n---ne
+        //  |   |   |
+        //  w---o---e
+        //  |   |   |
+        // sw---s---se
+        //
+
+        double p1 = 0f;
+        double p2 = pixels[offset - width - 1]; // nw
+        double p3 = pixels[offset - width];     // n
+        double p4 = 0f;                         // ne
+        double p5 = pixels[offset - 1];         // w
+        double p6 = pixels[offset];             // o
+        double p7 = 0f;                         // e
+        double p8 = pixels[offset + width - 1]; // sw
+        double p9 = pixels[offset + width];     // s
+
+        for (int x = 1; x + 1 < width; ++x) {
+            p1 = p2; p2 = p3; p3 = pixels[offset - width + 1];
+            p4 = p5; p5 = p6; p6 = pixels[offset + 1];
+            p7 = p8; p8 = p9; p9 = pixels[offset + width + 1];
+            double a = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
+            double b = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
+            outPixels[offset++] = (float)Math.sqrt(a * a + b * b);
+        }
+    }
+
+
+    void buildPyramid(ImageProcessor[] ipPyramid, ImageProcessor ip) {
+        buildPyramid(ipPyramid, ip, null, null);
+    }
+
+
+    /**
+        Gradient magnitude of the image on the first level of the pyramid,
+        subsampled on the following ones, with the derivatives of every level
+        when dx and dy are given (one array per level).
+
+        All of it is done in a single pass over the rows of the image: as
+        soon as a row of the gradient is computed, the rows of the coarser
+        levels that read it are interpolated, and the rows of derivatives
+        whose neighbours are known are taken, while the rows they read are
+        still in the cache. The results are the same as those of gradient,
+        resize and derivatives.
+    */
+    void buildPyramid(ImageProcessor[] ipPyramid, ImageProcessor ip,
+                      float[][] dx, float[][] dy)
+    {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        float[] pixels = (float[])ip.getPixels();
+        float[] outPixels = (float[])ipPyramid[0].getPixels();
+
+        int levels = 1;
+        while (levels < ipPyramid.length && ipPyramid[levels] != null)
+            ++levels;
+        // rows of each level, and of its derivatives, computed so far
+        int[] rows = new int[levels];
+        int[] derivativeRows = new int[levels];
+        Columns[] columns = new Columns[levels];
+        for (int l = 1; l < levels; ++l)
+            columns[l] = resizeColumns(ipPyramid[l], ipPyramid[0]);
+
+        // the first and last rows of the gradient are left to 0
+        for (int y = 1; y < height; ++y) {
+            if (y + 1 < height)
+                gradientRow(outPixels, pixels, width, y);
+            rows[0] = y + 1;
+            for (int l = 0; l < levels; ++l) {
+                if (l > 0)
+                    rows[l] = resizeRows(ipPyramid[l], ipPyramid[0],
+                                         columns[l], rows[l], rows[0]);
+                if (dx != null)
+                    derivativeRows[l] = derivatives(ipPyramid[l], dx[l], dy[l],
+                                                    derivativeRows[l], rows[l]);
             }
         }
     }
 
 
+    /**
+        Bilinear resampling, with the same result as getInterpolatedPixel
+        but working on the pixel arrays directly. Only the rows needed by
+        the output are read.
+    */
     void resize(ImageProcessor ipOut, ImageProcessor ip) {
+        resizeRows(ipOut, ip, resizeColumns(ipOut, ip), 0, ip.getHeight());
+    }
+
+
+    /**
+        Columns and weights along x of the pixels of ip sampled by ipOut, or
+        null for integer scales, as on the pyramid when the size is a
+        multiple of its scale: the samples then fall on pixels and there is
+        nothing to interpolate.
+    */
+    Columns resizeColumns(ImageProcessor ipOut, ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int widthOut = ipOut.getWidth();
+        int heightOut = ipOut.getHeight();
+        int xStep = width / widthOut;
+        int yStep = height / heightOut;
+        if (xStep > 1 && yStep > 1 && xStep * widthOut == width && yStep * heightOut == height)
+            return null;
+        return new Columns(widthOut, width / (double)widthOut, 0.0, width);
+    }
+
+
+    /**
+        Resamples the rows of ipOut from row from on, as long as the rows of
+        ip they read are within its first available ones. Returns the number
+        of rows of ipOut resampled so far.
+    */
+    int resizeRows(ImageProcessor ipOut, ImageProcessor ip, Columns columns,
+                   int from, int available)
+    {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
         int widthOut = ipOut.getWidth();
         int heightOut = ipOut.getHeight();
-        double xScale = ip.getWidth() / (double)widthOut;
-        double yScale = ip.getHeight() / (double)heightOut;
+        float[] pixels = (float[])ip.getPixels();
         float[] pixelsOut = (float[])ipOut.getPixels();
-        for (int i = 0, y = 0; y < heightOut; ++y) {
+
+        int y = from;
+        if (columns == null) {
+            int xStep = width / widthOut;
+            int yStep = height / heightOut;
+            for (; y < heightOut && y * yStep < available; ++y) {
+                int i = y * widthOut;
+                for (int x = 0, offset = y * yStep * width; x < widthOut; ++x, offset += xStep)
+                    pixelsOut[i++] = pixels[offset];
+            }
+            return y;
+        }
+
+        double yScale = height / (double)heightOut;
+        for (; y < heightOut; ++y) {
             double ys = y * yScale;
-            for (int x = 0; x < widthOut; ++x) {
-                pixelsOut[i++] = (float)ip.getInterpolatedPixel(x * xScale, ys);
+            if (ys >= height - 1.0) ys = height - 1.001;
+            int ybase = (int)ys;
+            if (ybase + 1 >= available)
+                break;
+            double yFraction = ys - ybase;
+            int row = ybase * width;
+            for (int x = 0, i = y * widthOut; x < widthOut; ++x) {
+                double xFraction = columns.fraction[x];
+                int offset = row + columns.base[x];
+                double lowerLeft = pixels[offset];
+                double lowerRight = pixels[offset + 1];
+                double upperLeft = pixels[offset + width];
+                double upperRight = pixels[offset + width + 1];
+                double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+                double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+                pixelsOut[i++] = (float)(lowerAverage + yFraction * (upperAverage - lowerAverage));
             }
         }
+        return y;
     }
     
     
     double[] prod(double[][] m, double[] v) {
-        int n = v.length;
-        double[] out = new double[n];
+        return prod(m, v, new double[v.length]);
+    }
+
+
+    /* Product of the n x n matrix m with the first n elements of v */
+    double[] prod(double[][] m, double[] v, double[] out) {
+        int n = m.length;
         for (int j = 0; j < n; ++j) {
             out[j] = 0.0;
             for (int i = 0; i < n; ++i)
@@ -872,7 +3064,11 @@ public class Image_Stabilizer implements PlugInFilter {
 
 
     double[][] prod(double[][] a, double[][] b) {
-        double[][] out = new double[a.length][b[0].length];
+        return prod(a, b, new double[a.length][b[0].length]);
+    }
+
+
+    double[][] prod(double[][] a, double[][] b, double[][] out) {
         for (int i = 0; i < a.length; ++i) {
             for (int j = 0; j < b[i].length; ++j) {
                 out[i][j] = 0.0;
@@ -885,11 +3081,15 @@ public class Image_Stabilizer implements PlugInFilter {
 
 
     float[] dx(ImageProcessor ip) {
+        return dx(ip, new float[ip.getWidth() * ip.getHeight()]);
+    }
+
+
+    float[] dx(ImageProcessor ip, float[] outPixels) {
         int width = ip.getWidth();
         int height = ip.getHeight();
 
         float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = new float[width * height];
 
         for (int y = 0; y < height; ++y) {
             // Take forward/backward difference on edges.
@@ -909,44 +3109,274 @@ public class Image_Stabilizer implements PlugInFilter {
 
 
     float[] dy(ImageProcessor ip) {
+        return dy(ip, new float[ip.getWidth() * ip.getHeight()]);
+    }
+
+
+    float[] dy(ImageProcessor ip, float[] outPixels) {
         int width = ip.getWidth();
         int height = ip.getHeight();
 
         float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = new float[width * height];
 
-        for (int x = 0; x < (int)width; ++x) {
-            // Take forward/backward difference on edges.
+        // Take forward/backward difference on edges.
+        int last = (height - 1) * width;
+        for (int x = 0; x < width; ++x) {
             outPixels[x] = (float)(pixels[width + x] - pixels[x]);
-            outPixels[(height - 1) * width + x] = (float)(pixels[width * (height - 1) + x]
-                                                        - pixels[width * (height - 2) + x]);
+            outPixels[last + x] = (float)(pixels[last + x] - pixels[last - width + x]);
+        }
 
-            // Take central difference in interior.
-            for (int y = 1; y + 1 < (int)height; ++y) {
-                outPixels[y * width + x] = (float)((pixels[width * (y + 1) + x] -
-                                                    pixels[width * (y - 1) + x]) * 0.5);
-            } // y
-        } // x
+        // Take central difference in interior, row by row.
+        for (int y = 1; y + 1 < height; ++y) {
+            int offset = y * width;
+            for (int x = 0; x < width; ++x, ++offset) {
+                outPixels[offset] = (float)((pixels[offset + width] -
+                                             pixels[offset - width]) * 0.5);
+            } // x
+        } // y
 
         return outPixels;
     }
 
 
+    /* dx and dy in a single pass over the image */
+    void derivatives(ImageProcessor ip, float[] dxPixels, float[] dyPixels) {
+        derivatives(ip, dxPixels, dyPixels, 0, ip.getHeight());
+    }
+
+
+    /**
+        dx and dy of the rows of ip from row from on, as long as the rows
+        they read are within its first available ones. Returns the number of
+        rows done so far.
+    */
+    int derivatives(ImageProcessor ip, float[] dxPixels, float[] dyPixels,
+                    int from, int available)
+    {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+
+        float[] pixels = (float[])ip.getPixels();
+
+        int y = from;
+        for (; y < height && (y + 1 < available || available == height); ++y) {
+            int offset = y * width;
+
+            // Take forward/backward difference on edges
+            //   and central difference in interior.
+            int up = y > 0 ? offset - width : offset;
+            int down = y + 1 < height ? offset + width : offset;
+            double scale = (y > 0 && y + 1 < height) ? 0.5 : 1.0;
+
+            dxPixels[offset] = (float)(pixels[offset + 1] - pixels[offset]);
+            dxPixels[offset + width - 1] = (float)(pixels[offset + width - 1]
+                                                 - pixels[offset + width - 2]);
+            for (int x = 1; x + 1 < width; ++x) {
+                dxPixels[offset + x] = (float)((pixels[offset + x + 1] -
+                                                pixels[offset + x - 1]) * 0.5);
+            } // x
+
+            for (int x = 0; x < width; ++x) {
+                dyPixels[offset + x] = (float)((pixels[down + x] -
+                                                pixels[up + x]) * scale);
+            } // x
+        } // y
+        return y;
+    }
+
+
     float[] dot(float[] p1, float[] p2) {
         int n = p1.length < p2.length ? p1.length : p2.length;
         float[] output = new float[n];
-        for (int i = 0; i < n; ++i)
-            output[i] = p1[i] * p2[i];
+        kernels.dot(p1, p2, output, n);
         return output;
     }
 
 
     double dotSum(float[] p1, float[] p2) {
-        double sum = 0.0;
-        int n = p1.length < p2.length ? p1.length : p2.length;
-        for (int i = 0; i < n; ++i)
-            sum += p1[i] * p2[i];
-        return sum;
+        return dotSum(p1, p2, p1.length < p2.length ? p1.length : p2.length);
+    }
+
+
+    double dotSum(float[] p1, float[] p2, int n) {
+        return kernels.dotSum(p1, 0, p2, 0, n);
+    }
+
+
+    /* Same as dotSum, on the pixels of the runs only (see createRuns) */
+    double dotSum(float[] p1, float[] p2, int[] runs) {
+        return kernels.dotSum(p1, p2, runs);
+    }
+
+
+    /**
+        Subtracts ipRef from the warped image ipOut, which becomes the error
+        image, and returns its root mean square error, with the dot products
+        of the first nSd steepest descent images sd and the error image in
+        b, on the pixels of the runs only. Same as subtract, rootMeanSquare
+        and one dotSum per steepest descent image, in a single pass over the
+        images.
+    */
+    double subtractDotSums(ImageProcessor ipOut, ImageProcessor ipRef,
+                           float[][] sd, int nSd, double[] b, int[] runs)
+    {
+        double sum = kernels.subtractDotSums((float[])ipOut.getPixels(),
+            (float[])ipRef.getPixels(), sd, nSd, b, runs);
+        return Math.sqrt(sum / countRuns(runs));
+    }
+
+
+    /* Number of pixels of the runs */
+    int countRuns(int[] runs) {
+        int n = 0;
+        for (int r = 0; r < runs.length; r += 2)
+            n += runs[r + 1] - runs[r];
+        return n;
+    }
+
+
+    /**
+        Loops over the pixels behind dotSum, dot, subtract, rootMeanSquare,
+        combine and subtractDotSums, which run many times per Gauss-Newton
+        iteration. These are the plain scalar loops; when the stabilizer runs
+        on Java 16 or later with the jdk.incubator.vector module, and the
+        VectorKernels class (src/imagej/vector) was compiled with the
+        plugins, the loops of that class, working on several pixels at once
+        with the vector instructions of the processor, are used instead.
+        Both accumulate the products of floats into doubles, the vector ones
+        in another order, so that the sums differ in the last digits only.
+    */
+    static class Kernels {
+
+        /* The vector kernels when they can be loaded, these ones otherwise */
+        static Kernels create() {
+            try {
+                return (Kernels)Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException e) {
+                // not compiled
+                return new Kernels();
+            }
+            catch (LinkageError e) {
+                // the module is not available, or compiled for a later Java
+                return new Kernels();
+            }
+        }
+
+        String getName() {
+            return "scalar";
+        }
+
+        double dotSum(float[] p1, int offset1, float[] p2, int offset2, int n) {
+            double sum = 0.0;
+            for (int i = 0; i < n; ++i)
+                sum += p1[offset1 + i] * p2[offset2 + i];
+            return sum;
+        }
+
+        double dotSum(float[] p1, float[] p2, int[] runs) {
+            double sum = 0.0;
+            for (int r = 0; r < runs.length; r += 2) {
+                for (int i = runs[r]; i < runs[r + 1]; ++i)
+                    sum += p1[i] * p2[i];
+            }
+            return sum;
+        }
+
+        void dot(float[] p1, float[] p2, float[] output, int n) {
+            for (int i = 0; i < n; ++i)
+                output[i] = p1[i] * p2[i];
+        }
+
+        double sumOfSquares(float[] pixels, int[] runs) {
+            double sum = 0.0;
+            for (int r = 0; r < runs.length; r += 2) {
+                for (int i = runs[r]; i < runs[r + 1]; ++i)
+                    sum += pixels[i] * pixels[i];
+            }
+            return sum;
+        }
+
+        void subtract(float[] outPixels, float[] pixels, int[] runs) {
+            for (int r = 0; r < runs.length; r += 2) {
+                for (int i = runs[r]; i < runs[r + 1]; ++i)
+                    outPixels[i] = outPixels[i] - pixels[i];
+            }
+        }
+
+        /* Pixels of outPixels where pixels is not 0 become alpha * outPixels + (1 - alpha) * pixels */
+        void combine(float[] outPixels, float[] pixels, double alpha) {
+            double beta = 1.0 - alpha;
+            for (int i = 0; i < pixels.length; ++i) {
+                if (pixels[i] != 0)
+                    outPixels[i] = (float)(alpha * outPixels[i] + beta * pixels[i]);
+            }
+        }
+
+        /**
+            Returns the sum of squares of the error image and the dot
+            products in b (see Image_Stabilizer.subtractDotSums). The sums
+            are accumulated separately, in the same order as the separate
+            loops, so that the results are the same.
+        */
+        double subtractDotSums(float[] outPixels, float[] pixels,
+                               float[][] sd, int nSd, double[] b, int[] runs)
+        {
+            if (nSd == 2)
+                return subtractDotSums2(outPixels, pixels, sd[0], sd[1], b, runs);
+            if (nSd == 6)
+                return subtractDotSums6(outPixels, pixels, sd, b, runs);
+            subtract(outPixels, pixels, runs);
+            for (int k = 0; k < nSd; ++k)
+                b[k] = dotSum(sd[k], outPixels, runs);
+            return sumOfSquares(outPixels, runs);
+        }
+
+        double subtractDotSums2(float[] outPixels, float[] pixels,
+                                float[] sd0, float[] sd1, double[] b, int[] runs)
+        {
+            double sum = 0.0, b0 = 0.0, b1 = 0.0;
+            for (int r = 0; r < runs.length; r += 2) {
+                for (int i = runs[r]; i < runs[r + 1]; ++i) {
+                    float e = outPixels[i] - pixels[i];
+                    outPixels[i] = e;
+                    sum += e * e;
+                    b0 += sd0[i] * e;
+                    b1 += sd1[i] * e;
+                }
+            }
+            b[0] = b0;
+            b[1] = b1;
+            return sum;
+        }
+
+        double subtractDotSums6(float[] outPixels, float[] pixels,
+                                float[][] sd, double[] b, int[] runs)
+        {
+            float[] sd0 = sd[0], sd1 = sd[1], sd2 = sd[2];
+            float[] sd3 = sd[3], sd4 = sd[4], sd5 = sd[5];
+            double sum = 0.0, b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0, b4 = 0.0, b5 = 0.0;
+            for (int r = 0; r < runs.length; r += 2) {
+                for (int i = runs[r]; i < runs[r + 1]; ++i) {
+                    float e = outPixels[i] - pixels[i];
+                    outPixels[i] = e;
+                    sum += e * e;
+                    b0 += sd0[i] * e;
+                    b1 += sd1[i] * e;
+                    b2 += sd2[i] * e;
+                    b3 += sd3[i] * e;
+                    b4 += sd4[i] * e;
+                    b5 += sd5[i] * e;
+                }
+            }
+            b[0] = b0;
+            b[1] = b1;
+            b[2] = b2;
+            b[3] = b3;
+            b[4] = b4;
+            b[5] = b5;
+            return sum;
+        }
     }
 
     /**
@@ -1041,68 +3471,165 @@ public class Image_Stabilizer implements PlugInFilter {
     }
 
 
+    /* Inverse of an affine transformation matrix (last row is 0 0 1) */
+    void invertAffine(double[][] a, double[][] out) {
+        double det = a[0][0] * a[1][1] - a[0][1] * a[1][0];
+        out[0][0] =  a[1][1] / det;
+        out[0][1] = -a[0][1] / det;
+        out[1][0] = -a[1][0] / det;
+        out[1][1] =  a[0][0] / det;
+        out[0][2] = -(out[0][0] * a[0][2] + out[0][1] * a[1][2]);
+        out[1][2] = -(out[1][0] * a[0][2] + out[1][1] * a[1][2]);
+        out[2][0] = 0.0;
+        out[2][1] = 0.0;
+        out[2][2] = 1.0;
+    }
+
+
     double rootMeanSquare(ImageProcessor ip) {
-        double mean = 0.0;
         float[] pixels = (float[])ip.getPixels();
-        for (int i = 0; i < pixels.length; ++i)
-            mean += pixels[i] * pixels[i];
+        double mean = kernels.dotSum(pixels, 0, pixels, 0, pixels.length);
         mean /= pixels.length;
         return Math.sqrt(mean);
     }
 
 
+    double rootMeanSquare(ImageProcessor ip, int[] runs) {
+        double mean = kernels.sumOfSquares((float[])ip.getPixels(), runs);
+        mean /= countRuns(runs);
+        return Math.sqrt(mean);
+    }
+
+
     void combine(ImageProcessor ipOut, ImageProcessor ip) {
-        float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = (float[])ipOut.getPixels();
-        double beta = 1.0 - alpha;
-        for (int i = 0; i < pixels.length; ++i) {
-            if (pixels[i] != 0)
-                outPixels[i] = (float)(alpha * outPixels[i] + beta * pixels[i]);
-        }
+        kernels.combine((float[])ipOut.getPixels(), (float[])ip.getPixels(), alpha);
     }
 
 
     void subtract(ImageProcessor ipOut, ImageProcessor ip) {
         float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = (float[])ipOut.getPixels();
-        for (int i = 0; i < pixels.length; ++i)
-            outPixels[i] = outPixels[i] - pixels[i];
+        kernels.subtract((float[])ipOut.getPixels(), pixels,
+                         new int[] { 0, pixels.length });
+    }
+
+
+    void subtract(ImageProcessor ipOut, ImageProcessor ip, int[] runs) {
+        kernels.subtract((float[])ipOut.getPixels(), (float[])ip.getPixels(), runs);
     }
 
 
+    /**
+        Bilinear warps of the pixel arrays, with the same result as the
+        bilinear getInterpolatedPixel and getInterpolatedRGBPixel of ImageJ,
+        which clamp the coordinates to the image, for images without NaN
+        pixels. Each call of these goes through a virtual method, clamps the
+        coordinates and computes the weights again; here the columns and the
+        weights along x are computed once for a translation, which moves all
+        rows alike (see Columns), and the coordinates of an affine
+        transformation are stepped along each run. Other interpolations, or
+        images of other types, go through the ImageJ methods.
+
+        The warps work on runs of pixels along the rows (see createRuns),
+        and split them among the threads of warpPool, when there is one.
+    */
     void warpAffine(ImageProcessor ipOut,
                     ImageProcessor ip,
                     double[][]     wp)
     {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        warpAffine(ipOut, ip, wp, rowRuns(ipOut), null);
+    }
+
+
+    /* Same as warpAffine, on the pixels of the runs only, with the task of ws
+       when it is not null */
+    void warpAffine(ImageProcessor ipOut,
+                    ImageProcessor ip,
+                    double[][]     wp,
+                    int[]          runs,
+                    Workspace      ws)
+    {
+        if (!isDirectBilinear(ip)) {
+            warpInterpolated(ipOut, ip, wp, runs, wp[0].length == 3);
+            return;
+        }
+        WarpTask task = warpTask(ws);
+        task.set((float[])ipOut.getPixels(), ipOut.getWidth(), (float[])ip.getPixels(),
+                 ip.getWidth(), ip.getHeight(), wp, null, runs);
+        forRuns(runs, task);
+    }
+
+
+    void warpAffine(float[] outPixels, int widthOut, float[] pixels, int width, int height,
+                    double[][] wp, int[] runs, int from, int to)
+    {
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+        double xStep = 1.0 + wp[0][0];
+        double yStep = wp[1][0];
+        for (int r = from; r < to; r += 2) {
+            int y = runs[r] / widthOut;
+            int x = runs[r] - y * widthOut;
+            // coordinates of the first pixel of the run, then stepped along it
+            double xx = xStep * x + wp[0][1] * y + wp[0][2];
+            double yy = yStep * x + (1.0 + wp[1][1]) * y + wp[1][2];
+            for (int p = runs[r]; p < runs[r + 1]; ++p, xx += xStep, yy += yStep) {
+                double xs = xx < 0.0 ? 0.0 : (xx >= xMax ? width - 1.001 : xx);
+                double ys = yy < 0.0 ? 0.0 : (yy >= yMax ? height - 1.001 : yy);
+                int xBase = (int)xs;
+                int yBase = (int)ys;
+                double xFraction = xs - xBase;
+                double yFraction = ys - yBase;
+                int offset = yBase * width + xBase;
+                double lowerLeft = pixels[offset];
+                double lowerRight = pixels[offset + 1];
+                double upperRight = pixels[offset + width + 1];
+                double upperLeft = pixels[offset + width];
+                double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+                double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+                outPixels[p] = (float)(lowerAverage + yFraction * (upperAverage - lowerAverage));
+            }
+        }
     }
 
 
     void warpColorAffine(ImageProcessor ipOut,
                          ColorProcessor ip,
-                         double[][]     wp)
+                         double[][]     wp,
+                         Workspace      ws)
     {
-        int[] outPixels = (int[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = (int)ip.getInterpolatedRGBPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        int[] runs = rowRuns(ipOut);
+        if (ip.getWidth() < 2 || ip.getHeight() < 2 ||
+            ip.getInterpolationMethod() == ImageProcessor.BICUBIC) {
+            warpInterpolated(ipOut, ip, wp, runs, wp[0].length == 3);
+            return;
+        }
+        WarpTask task = warpTask(ws);
+        task.setColor((int[])ipOut.getPixels(), ipOut.getWidth(), (int[])ip.getPixels(),
+                      ip.getWidth(), ip.getHeight(), wp, null, runs);
+        forRuns(runs, task);
+    }
+
+
+    void warpColorAffine(int[] outPixels, int widthOut, int[] pixels, int width, int height,
+                         double[][] wp, int[] runs, int from, int to)
+    {
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+        double xStep = 1.0 + wp[0][0];
+        double yStep = wp[1][0];
+        for (int r = from; r < to; r += 2) {
+            int y = runs[r] / widthOut;
+            double xx = wp[0][1] * y + wp[0][2];
+            double yy = (1.0 + wp[1][1]) * y + wp[1][2];
+            for (int p = runs[r]; p < runs[r + 1]; ++p, xx += xStep, yy += yStep) {
+                double xs = xx < 0.0 ? 0.0 : (xx >= xMax ? width - 1.001 : xx);
+                double ys = yy < 0.0 ? 0.0 : (yy >= yMax ? height - 1.001 : yy);
+                int xBase = (int)xs;
+                int yBase = (int)ys;
+                outPixels[p] = interpolateRGB(pixels, width, yBase * width + xBase,
+                                              xs - xBase, ys - yBase);
+            }
+        }
     }
 
 
@@ -1110,32 +3637,324 @@ public class Image_Stabilizer implements PlugInFilter {
                          ImageProcessor ip,
                          double[][]     wp)
     {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = x + wp[0][0];
-                double yy = y + wp[1][0];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        warpTranslation(ipOut, ip, wp, rowRuns(ipOut), null);
+    }
+
+
+    /* Same as warpTranslation, on the pixels of the runs only, with the
+       columns and the task of ws when it is not null */
+    void warpTranslation(ImageProcessor ipOut,
+                         ImageProcessor ip,
+                         double[][]     wp,
+                         int[]          runs,
+                         Workspace      ws)
+    {
+        if (!isDirectBilinear(ip)) {
+            warpInterpolated(ipOut, ip, wp, runs, wp[0].length == 3);
+            return;
+        }
+        int widthOut = ipOut.getWidth();
+        int width = ip.getWidth();
+        WarpTask task = warpTask(ws);
+        task.set((float[])ipOut.getPixels(), widthOut, (float[])ip.getPixels(),
+                 width, ip.getHeight(), wp,
+                 columns(ws, widthOut).fill(widthOut, 1.0, wp[0][0], width), runs);
+        forRuns(runs, task);
+    }
+
+
+    void warpTranslation(float[] outPixels, int widthOut, float[] pixels, int width, int height,
+                         Columns columns, double dy, int[] runs, int from, int to)
+    {
+        int[] xBase = columns.base;
+        double[] xFraction = columns.fraction;
+        for (int r = from; r < to; r += 2) {
+            int y = runs[r] / widthOut;
+            double ys = clamp(y + dy, height);
+            int yBase = (int)ys;
+            double yFraction = ys - yBase;
+            int row = yBase * width;
+            for (int p = runs[r], x = p - y * widthOut; p < runs[r + 1]; ++p, ++x) {
+                double f = xFraction[x];
+                int offset = row + xBase[x];
+                double lowerLeft = pixels[offset];
+                double lowerRight = pixels[offset + 1];
+                double upperRight = pixels[offset + width + 1];
+                double upperLeft = pixels[offset + width];
+                double upperAverage = upperLeft + f * (upperRight - upperLeft);
+                double lowerAverage = lowerLeft + f * (lowerRight - lowerLeft);
+                outPixels[p] = (float)(lowerAverage + yFraction * (upperAverage - lowerAverage));
+            }
+        }
     }
 
 
     void warpColorTranslation(ImageProcessor ipOut,
                               ColorProcessor ip,
-                              double[][]     wp)
+                              double[][]     wp,
+                              Workspace      ws)
+    {
+        int[] runs = rowRuns(ipOut);
+        if (ip.getWidth() < 2 || ip.getHeight() < 2 ||
+            ip.getInterpolationMethod() == ImageProcessor.BICUBIC) {
+            warpInterpolated(ipOut, ip, wp, runs, wp[0].length == 3);
+            return;
+        }
+        int widthOut = ipOut.getWidth();
+        int width = ip.getWidth();
+        WarpTask task = warpTask(ws);
+        task.setColor((int[])ipOut.getPixels(), widthOut, (int[])ip.getPixels(),
+                      width, ip.getHeight(), wp,
+                      columns(ws, widthOut).fill(widthOut, 1.0, wp[0][0], width), runs);
+        forRuns(runs, task);
+    }
+
+
+    void warpColorTranslation(int[] outPixels, int widthOut, int[] pixels, int width, int height,
+                              Columns columns, double dy, int[] runs, int from, int to)
+    {
+        for (int r = from; r < to; r += 2) {
+            int y = runs[r] / widthOut;
+            double ys = clamp(y + dy, height);
+            int yBase = (int)ys;
+            double yFraction = ys - yBase;
+            for (int p = runs[r], x = p - y * widthOut; p < runs[r + 1]; ++p, ++x) {
+                outPixels[p] = interpolateRGB(pixels, width,
+                    yBase * width + columns.base[x], columns.fraction[x], yFraction);
+            }
+        }
+    }
+
+
+    /**
+        Warp of the runs of an image, on float or RGB pixels, by a translation
+        (with its columns) or an affine transformation (without). The task of
+        a workspace is set up again for every warp, so that the warps of the
+        Gauss-Newton iterations allocate nothing.
+    */
+    class WarpTask implements RunsTask {
+        float[]    outPixels;
+        float[]    pixels;
+        int[]      outRgb;
+        int[]      rgb;
+        int        widthOut;
+        int        width;
+        int        height;
+        double[][] wp;
+        Columns    columns;
+        int[]      runs;
+
+        void set(float[] outPixels, int widthOut, float[] pixels, int width, int height,
+                 double[][] wp, Columns columns, int[] runs) {
+            this.outPixels = outPixels;
+            this.pixels = pixels;
+            this.outRgb = null;
+            this.rgb = null;
+            setGeometry(widthOut, width, height, wp, columns, runs);
+        }
+
+        void setColor(int[] outRgb, int widthOut, int[] rgb, int width, int height,
+                      double[][] wp, Columns columns, int[] runs) {
+            this.outPixels = null;
+            this.pixels = null;
+            this.outRgb = outRgb;
+            this.rgb = rgb;
+            setGeometry(widthOut, width, height, wp, columns, runs);
+        }
+
+        void setGeometry(int widthOut, int width, int height,
+                         double[][] wp, Columns columns, int[] runs) {
+            this.widthOut = widthOut;
+            this.width = width;
+            this.height = height;
+            this.wp = wp;
+            this.columns = columns;
+            this.runs = runs;
+        }
+
+        public void run(int from, int to) {
+            if (rgb == null && columns == null)
+                warpAffine(outPixels, widthOut, pixels, width, height, wp, runs, from, to);
+            else if (rgb == null)
+                warpTranslation(outPixels, widthOut, pixels, width, height,
+                                columns, wp[1][0], runs, from, to);
+            else if (columns == null)
+                warpColorAffine(outRgb, widthOut, rgb, width, height, wp, runs, from, to);
+            else
+                warpColorTranslation(outRgb, widthOut, rgb, width, height,
+                                     columns, wp[1][0], runs, from, to);
+        }
+    }
+
+
+    /* Warp task of ws, or a new one without a workspace (e.g. in replay) */
+    WarpTask warpTask(Workspace ws) {
+        return ws != null ? ws.warp : new WarpTask();
+    }
+
+
+    /* Columns of ws for rows of widthOut pixels, or new ones without a workspace */
+    Columns columns(Workspace ws, int widthOut) {
+        if (ws != null && ws.columns.base.length >= widthOut)
+            return ws.columns;
+        return new Columns(widthOut);
+    }
+
+
+    /**
+        Bilinear interpolation of the RGB pixel at offset + fractions, as
+        getInterpolatedRGBPixel: the three channels of the four neighbours
+        are unpacked at once.
+    */
+    static int interpolateRGB(int[] pixels, int width, int offset,
+                              double xFraction, double yFraction)
+    {
+        int lowerLeft = pixels[offset];
+        int lowerRight = pixels[offset + 1];
+        int upperRight = pixels[offset + width + 1];
+        int upperLeft = pixels[offset + width];
+        int rgb = 0xff000000;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int ll = (lowerLeft >> shift) & 0xff;
+            int lr = (lowerRight >> shift) & 0xff;
+            int ur = (upperRight >> shift) & 0xff;
+            int ul = (upperLeft >> shift) & 0xff;
+            double upperAverage = ul + xFraction * (ur - ul);
+            double lowerAverage = ll + xFraction * (lr - ll);
+            int value = (int)(lowerAverage + yFraction * (upperAverage - lowerAverage) + 0.5);
+            rgb |= (value & 0xff) << shift;
+        }
+        return rgb;
+    }
+
+
+    /**
+        Pixel columns and weights along x of the samples x * scale + dx of an
+        output row, for all x, as computed by getInterpolatedPixel.
+    */
+    static class Columns {
+        int[]    base;
+        double[] fraction;
+
+        /* Room for rows of up to widthOut pixels, filled by fill */
+        Columns(int widthOut) {
+            base = new int[widthOut];
+            fraction = new double[widthOut];
+        }
+
+        Columns(int widthOut, double scale, double dx, int width) {
+            this(widthOut);
+            fill(widthOut, scale, dx, width);
+        }
+
+        /* Fills the first widthOut columns, in place */
+        Columns fill(int widthOut, double scale, double dx, int width) {
+            for (int x = 0; x < widthOut; ++x) {
+                double xs = clamp(x * scale + dx, width);
+                base[x] = (int)xs;
+                fraction[x] = xs - base[x];
+            }
+            return this;
+        }
+    }
+
+
+    /* Coordinate clamped to the interval interpolated by getInterpolatedPixel */
+    static double clamp(double x, int size) {
+        if (x < 0.0)
+            return 0.0;
+        if (x >= size - 1.0)
+            return size - 1.001;
+        return x;
+    }
+
+
+    /* Whether ip is interpolated by the direct bilinear warps */
+    boolean isDirectBilinear(ImageProcessor ip) {
+        return ip instanceof FloatProcessor && ip.getWidth() > 1 && ip.getHeight() > 1 &&
+            ip.getInterpolationMethod() != ImageProcessor.BICUBIC;
+    }
+
+
+    /* Warp through the interpolation methods of ImageJ */
+    void warpInterpolated(ImageProcessor ipOut,
+                          ImageProcessor ip,
+                          double[][]     wp,
+                          int[]          runs,
+                          boolean        affine)
     {
-        int[] outPixels = (int[])ipOut.getPixels();
+        boolean color = ipOut instanceof ColorProcessor;
+        Object outPixels = ipOut.getPixels();
         int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                outPixels[p] = (int)ip.getInterpolatedRGBPixel(x + wp[0][0], y + wp[1][0]);
-                ++p;
-            } // x
-        } // y
+        for (int r = 0; r < runs.length; r += 2) {
+            int y = runs[r] / width;
+            for (int p = runs[r], x = p - y * width; p < runs[r + 1]; ++p, ++x) {
+                double xx = x + wp[0][0];
+                double yy = y + wp[1][0];
+                if (affine) {
+                    xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
+                    yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
+                }
+                if (color)
+                    ((int[])outPixels)[p] = ((ColorProcessor)ip).getInterpolatedRGBPixel(xx, yy);
+                else
+                    ((float[])outPixels)[p] = (float)ip.getInterpolatedPixel(xx, yy);
+            }
+        }
+    }
+
+
+    /* Runs of all the pixels of ip: its rows */
+    int[] rowRuns(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int[] runs = new int[2 * height];
+        for (int y = 0; y < height; ++y) {
+            runs[2 * y] = y * width;
+            runs[2 * y + 1] = (y + 1) * width;
+        }
+        return runs;
+    }
+
+
+    /* Part of the runs, from index from to index to (exclusive) */
+    interface RunsTask {
+        void run(int from, int to);
+    }
+
+
+    /**
+        Calls task on the runs, split in as many parts as there are threads
+        in warpPool, or at once on the calling thread when there is none
+        (e.g. the slices are already warped by several threads).
+    */
+    void forRuns(int[] runs, final RunsTask task) {
+        int nRuns = runs.length / 2;
+        if (warpPool == null || nRuns < 2 * threads) {
+            task.run(0, runs.length);
+            return;
+        }
+        List<Future<?>> parts = new ArrayList<Future<?>>();
+        for (int k = 0; k < threads; ++k) {
+            final int from = 2 * (int)((long)nRuns * k / threads);
+            final int to = 2 * (int)((long)nRuns * (k + 1) / threads);
+            parts.add(warpPool.submit(new Runnable() {
+                public void run() {
+                    task.run(from, to);
+                }
+            }));
+        }
+        try {
+            for (int k = 0; k < parts.size(); ++k)
+                parts.get(k).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
     }
 }
\ No newline at end of file
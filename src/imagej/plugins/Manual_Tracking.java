@@ -15,6 +15,10 @@ import java.awt.SystemColor;
 import java.io.*;
 import java.lang.*;
 import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
 import ij.*;
 import ij.gui.*;
 import ij.io.*;
@@ -52,6 +56,7 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
     Choice trackdel;
     Button butDelAll;
     Checkbox checkPath;
+    Checkbox checkAssist;
 
 
     //Image related variables---------------------------------------------------
@@ -68,6 +73,9 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
     ImageWindow win;
     StackConverter sc;
     Duplicater dp;
+    static final int PREFETCH=4;  // Number of slices decoded ahead on virtual stacks
+    static final int CACHE=16;    // Maximum number of slices kept in memory on virtual stacks
+    double scale=1;     // Size of the stack relative to the original images (<1 when tracking on a reduced copy, i.e. a proxy)
 
 
     //Tracking related variables------------------------------------------------
@@ -81,14 +89,25 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
     int ox;     // x coordinate of the current tracked point
     int oy;     // y coordinate of the current tracked point
 
+    // Assisted tracking: the object is followed by template matching while the match is good
+    javax.swing.Timer assist; // Proposes the position on the next slice, after ASSIST_DELAY ms to let the slice be drawn
+    static final int ASSIST_DELAY=20;
+    static final int ASSIST_TEMPLATE=8;   // Half size of the template around the object, in pixels
+    static final int ASSIST_SEARCH=20;    // Maximum displacement from the predicted position, in pixels
+    static final double ASSIST_MIN_NCC=0.8; // Minimum normalised cross-correlation to accept a position
+
 
     //Dialog boxes--------------------------------------------------------------
     GenericDialog gd;
 
 
     //Results tables------------------------------------------------------------
-    ResultsTable rt;    //2D results table
-    ResultsTable rtmp;  // Temporary results table
+    TrackStore tracks=new TrackStore(); // Tracked points
+    ResultsTable rt;    //2D results table, exported from the tracked points
+    int exported=0;     // Number of points already exported to the results table
+    boolean rebuild=false; // True when points were deleted since the last export
+    javax.swing.Timer refresh; // Exports and shows the results table at most every REFRESH ms
+    static final int REFRESH=250;
     // results table's heading
     String[] head={"trackNb","sliceNb","imgNb","x","y"};
 
@@ -99,6 +118,12 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
         super("Manual tracking");
         instance=this;
 
+        // Options given by a macro: scale=50 when the stack is a proxy of the original images, reduced to 50%
+        String options=Macro.getOptions();
+        if (options!=null) {
+            scale=Tools.parseDouble(Macro.getValue(options, "scale", null), 100)/100;
+        }
+
         panel = new Panel();
         panel.setLayout(new GridLayout(0,2, 5, 5));
         panel.setBackground(SystemColor.control);
@@ -130,6 +155,10 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
         butDelAll.addActionListener(this);
         panel.add(butDelAll);
 
+        checkAssist=new Checkbox("Assisted ?", false);
+        checkAssist.addItemListener(this);
+        panel.add(checkAssist);
+
         add(panel,BorderLayout.CENTER);
         pack();
         show();
@@ -137,6 +166,10 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
         IJ.showProgress(2,1);
 
         rt=new ResultsTable();
+        refresh=new javax.swing.Timer(REFRESH, this);
+        refresh.setRepeats(false);
+        assist=new javax.swing.Timer(ASSIST_DELAY, this);
+        assist.setRepeats(false);
     }
 
     public void itemStateChanged(ItemEvent e) {
@@ -147,9 +180,28 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
                 img.killRoi();
             }
         }
+        // Stop proposing positions------------------------------------------------
+        if (e.getSource() == checkAssist && !checkAssist.getState()) {
+            assist.stop();
+        }
     }
 
     public void actionPerformed(ActionEvent e) {
+        // Refresh of the results table due----------------------------------------
+        if (e.getSource() == refresh) {
+            showTable();
+            return;
+        }
+
+        // Position to propose on the current slice---------------------------------
+        if (e.getSource() == assist) {
+            assistStep();
+            return;
+        }
+
+        // Any button stops the assisted tracking
+        assist.stop();
+
         // Button Add Track pressed---------------------------------------------
         if (e.getSource() == butAdd) {
             // Check whether the stack is already being followed
@@ -176,6 +228,12 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
                 return;
             }
 
+            // On virtual stacks, decode the next slices in the background
+            if (stack instanceof VirtualStack && !(stack instanceof PrefetchStack)) {
+                stack=new PrefetchStack((VirtualStack) stack, PREFETCH, CACHE);
+                img.setStack(stack);
+            }
+
             // Go to the first slice
             win = img.getWindow();
             canvas=win.getCanvas();
@@ -199,30 +257,15 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             gd.showDialog();
             if (gd.wasCanceled()) return;
 
-            // Create a temporary ResultTable and copy data from the original
-            rtmp=new ResultsTable();
-            for (i=0; i<(rt.getCounter()); i++) {
-                rtmp.incrementCounter();
-                for (j=0; j<head.length; j++) rtmp.addValue(j, rt.getValue(j,i));
-            }
-
-            // Clean original table
-            rt.reset();
-
-            // Set header back
-            for (i=0; i<head.length; i++) rt.setHeading(i,head[i]);
-
-            //Copy data back to original table except last point
-            for (i=0; i<((rtmp.getCounter())-1); i++) {
-                rt.incrementCounter();
-                for (j=0; j<head.length; j++) rt.addValue(j, rtmp.getValue(j,i));
-            }
-            rt.show("Tracks");
+            // Delete the last point
+            tracks.removeLast();
+            rebuild=true;
+            showTable();
 
             //Manage case where the deleted point is the last of a serie
             if (islistening==false) {
                 Nbtrack--;
-                trackdel.remove(""+(int) rt.getValue(0,rt.getCounter()-1));
+                if (tracks.size()!=0) trackdel.remove(""+tracks.getLastTrackNb());
                 canvas.addMouseListener(this);
                 islistening=true;
             }
@@ -231,7 +274,7 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             NbPoint--;
 
             // Set stack to previous slice
-            img.setSlice(((int) rt.getValue(1, rt.getCounter()-1))+1);
+            img.setSlice(tracks.getLastSlice()+1);
 
             IJ.showStatus("Last Point Deleted !");
         }
@@ -242,6 +285,7 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             Nbtrack++;
             canvas.removeMouseListener(this);
             islistening=false;
+            showTable();
             IJ.showStatus("Tracking is over");
             IJ.showProgress(2,1);
             return;
@@ -272,44 +316,21 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             gd.showDialog();
             if (gd.wasCanceled()) return;
 
-            // Create a temporary ResultTable and copy data from the original except for the deleted track
-            rtmp=new ResultsTable();
-            for (i=0; i<(rt.getCounter()); i++) {
-                int nbtrack=(int) rt.getValue(0,i);
-                if(nbtrack!=tracktodelete){
-                    rtmp.incrementCounter();
-                    for (j=0; j<head.length; j++) rtmp.addValue(j, rt.getValue(j,i));
-                }
-            }
-
-            rt.reset();
-
-            // Copy data back to original table
-            for (i=0; i<head.length; i++) rt.setHeading(i,head[i]);
-
-            for (i=0; i<(rtmp.getCounter()); i++) {
-                rt.incrementCounter();
-              for (j=0; j<head.length; j++){
-                    if (j==0 & rtmp.getValue(0,i)>tracktodelete){
-                        rt.addValue(j, rtmp.getValue(j,i)-1);
-                    } else {
-                        rt.addValue(j, rtmp.getValue(j,i));
-                    }
-                }
-            }
-
-            rt.show("Tracks");
+            // Delete the track; the following ones are renumbered
+            tracks.removeTrack(tracktodelete);
+            rebuild=true;
+            showTable();
 
             // Reset the drop down choices for deleting the tracks
             trackdel.removeAll();
             // If there are tracks left
-            if ((rt.getCounter()) != 0) {
+            if (tracks.size() != 0) {
                 // add them back as choices
-                for (i=1;i<(rt.getValue(0,rt.getCounter()-1))+1;i++){
+                for (i=1;i<tracks.getLastTrackNb()+1;i++){
                     trackdel.add(""+i);
                 }
                 // reset track counter
-                Nbtrack=((int) rt.getValue(0,rt.getCounter()-1))+1;
+                Nbtrack=tracks.getLastTrackNb()+1;
             } else {
                 // If there are no tracks left, just set track counter to 1
                 Nbtrack=1;
@@ -342,8 +363,9 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             if (gd.wasCanceled()) return;
 
             // Reset result table
-            rt.reset();
-            rt.show("Tracks");
+            tracks.clear();
+            rebuild=true;
+            showTable();
             trackdel.removeAll();
             IJ.showStatus("All Tracks Deleted !");
 
@@ -356,31 +378,34 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
 
     // Click on image-----------------------------------------------------------
     public void mouseReleased(MouseEvent m) {
+        // A click overrides the proposed positions
+        assist.stop();
+
+        // Get clicked coordinates
+        int x=m.getX();
+        int y=m.getY();
+        addPoint(canvas.offScreenX(x), canvas.offScreenY(y));
+
+        // Propose the position on the next slices
+        if (islistening && checkAssist.getState()) assist.start();
+    }
+
+    // Record the position of the object on the current slice and go to the next one
+    void addPoint(int x, int y) {
 
         // Status message in the main window
         IJ.showProgress(img.getCurrentSlice()+1,img.getStackSize()+1);
         IJ.showStatus("Tracking slice "+(img.getCurrentSlice()+1)+" of "+(img.getStackSize()+1));
 
-        // If this is the first point, set the results table heading
-        if (Nbtrack==1 && NbPoint==1){
-            for (i=0; i<head.length; i++) rt.setHeading(i,head[i]);
-        }
-
         // Suppress possible ROIs
         img.killRoi();
 
-        // Get clicked coordinates
-        int x=m.getX();
-        int y=m.getY();
-        ox=canvas.offScreenX(x);
-        oy=canvas.offScreenY(y);
+        ox=x;
+        oy=y;
 
         xRoi[NbPoint-1]=ox;
         yRoi[NbPoint-1]=oy;
 
-        // Go to the next line in the results table
-        rt.incrementCounter();
-
         // Detect the filename of the image (which is a number) and add that to the output table
         int sliceNb=img.getCurrentSlice();
         String label=stack.getSliceLabel(sliceNb);
@@ -389,13 +414,11 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
         // System.out.println(label.substring(0,label.indexOf(".")));
         double imgNb=Double.parseDouble(label.substring(0,label.indexOf(".")));
 
-        // Prepare the output line (only double numbers)
         // NB: invert Y coordinate
-        double[] doub={Nbtrack,(img.getCurrentSlice()),imgNb,ox,img.getHeight()-oy};
-
-        // Add the line to the results table
-        for (i=0; i<doub.length; i++) rt.addValue(i,doub[i]);
-        rt.show("Tracks");
+        // Add the point to the tracks; the results table is updated later, with other points
+        // Positions are recorded in the pixels of the original images: the centre of the clicked pixel of a proxy is scaled back
+        tracks.add(Nbtrack, sliceNb, imgNb, (ox+0.5)/scale-0.5, (img.getHeight()-oy-0.5)/scale+0.5);
+        tableChanged();
 
         if ((img.getCurrentSlice())<img.getStackSize()) {
             // If we are not at the last slice:
@@ -422,16 +445,400 @@ public class Manual_Tracking extends PlugInFrame implements ActionListener, Item
             // stop tracking
             canvas.removeMouseListener(this);
             islistening=false;
+            showTable();
             IJ.showStatus("Tracking is over");
             return;
         }
 
     }
 
+    // Assisted tracking--------------------------------------------------------
+    // Look for the object on the current slice around the position predicted from the last two points, by matching the neighbourhood of the last point. The position is accepted, and the next slice examined, while the match is good; otherwise the user is asked to click.
+    void assistStep() {
+        if (!islistening || NbPoint<2) return;
+        int slice=img.getCurrentSlice();
+        int px=xRoi[NbPoint-2];
+        int py=yRoi[NbPoint-2];
+        int qx=px;
+        int qy=py;
+        if (NbPoint>=3) {
+            qx+=px-xRoi[NbPoint-3];
+            qy+=py-yRoi[NbPoint-3];
+        }
+        // the previous slice, without turning the prefetch backwards
+        ImageProcessor previous=stack instanceof PrefetchStack ? ((PrefetchStack) stack).getCachedProcessor(slice-1) : stack.getProcessor(slice-1);
+        double[] match=match(previous, img.getProcessor(), px, py, qx, qy, ASSIST_TEMPLATE, ASSIST_SEARCH);
+        if (match==null || match[2]<ASSIST_MIN_NCC) {
+            IJ.showStatus("Please click the object on slice "+slice+(match==null ? "" : " (match "+IJ.d2s(match[2],2)+")"));
+            IJ.beep();
+            return;
+        }
+        addPoint((int) match[0], (int) match[1]);
+        if (islistening) assist.restart();
+    }
+
+    // Find the neighbourhood of (px,py) in ip1 in ip2, within radius pixels of (qx,qy)
+    // returns the best position and its normalised cross-correlation {x, y, ncc}, null when the neighbourhood is not fully inside the image. A best position on the border of the search area is given a correlation of 0, the object being probably further away.
+    static double[] match(ImageProcessor ip1, ImageProcessor ip2, int px, int py, int qx, int qy, int half, int radius) {
+        int width=ip1.getWidth();
+        int height=ip1.getHeight();
+        int size=2*half+1;
+        if (px-half<0 || py-half<0 || px+half>=width || py+half>=height) return null;
+
+        // Template, centred and normalised
+        float[] template=new float[size*size];
+        double mean=0;
+        for (int v=0; v<size; v++) {
+            for (int u=0; u<size; u++) {
+                template[v*size+u]=getValue(ip1, px-half+u, py-half+v);
+                mean+=template[v*size+u];
+            }
+        }
+        mean/=template.length;
+        double norm=0;
+        for (int k=0; k<template.length; k++) {
+            template[k]-=mean;
+            norm+=template[k]*template[k];
+        }
+        if (norm==0) return null;
+
+        // Search area
+        int x0=Math.max(half, qx-radius);
+        int y0=Math.max(half, qy-radius);
+        int x1=Math.min(width-1-half, qx+radius);
+        int y1=Math.min(height-1-half, qy+radius);
+        if (x1<x0 || y1<y0) return null;
+        int aw=x1-x0+2*half+1;
+        int ah=y1-y0+2*half+1;
+        float[] area=new float[aw*ah];
+        for (int v=0; v<ah; v++) {
+            for (int u=0; u<aw; u++) {
+                area[v*aw+u]=getValue(ip2, x0-half+u, y0-half+v);
+            }
+        }
+
+        double best=-2;
+        int bx=qx;
+        int by=qy;
+        for (int y=y0; y<=y1; y++) {
+            for (int x=x0; x<=x1; x++) {
+                double sum=0, sum2=0, cross=0;
+                for (int v=0; v<size; v++) {
+                    int offset=(y-y0+v)*aw+(x-x0);
+                    for (int u=0; u<size; u++) {
+                        float a=area[offset+u];
+                        sum+=a;
+                        sum2+=a*a;
+                        cross+=a*template[v*size+u];
+                    }
+                }
+                double var=sum2-sum*sum/template.length;
+                if (var<=0) continue;
+                double ncc=cross/Math.sqrt(var*norm);
+                if (ncc>best) {
+                    best=ncc;
+                    bx=x;
+                    by=y;
+                }
+            }
+        }
+        if (best==-2) return null;
+        boolean border=(bx==qx-radius || bx==qx+radius || by==qy-radius || by==qy+radius);
+        double[] result={bx, by, border ? 0 : best};
+        return result;
+    }
+
+    // Grey level of a pixel, the mean of the components for RGB images
+    static float getValue(ImageProcessor ip, int x, int y) {
+        if (ip instanceof ColorProcessor) {
+            int c=ip.get(x, y);
+            return (((c>>16)&0xff)+((c>>8)&0xff)+(c&0xff))/3f;
+        }
+        return ip.getPixelValue(x, y);
+    }
+
+    // Results table------------------------------------------------------------
+    // Schedule the update of the results table after points were added, so that successive clicks are exported together
+    void tableChanged() {
+        if (!refresh.isRunning()) refresh.start();
+    }
+
+    // Export the new points to the results table and show it
+    // Only the points added since the last export are copied, unless some were deleted
+    void showTable() {
+        refresh.stop();
+        if (rebuild) {
+            rt.reset();
+            exported=0;
+            rebuild=false;
+        }
+        if (exported==0) {
+            for (i=0; i<head.length; i++) rt.setHeading(i,head[i]);
+        }
+        int row=0;
+        for (int t=1; t<=tracks.getNbTracks(); t++) {
+            TrackStore.Track track=tracks.getTrack(t);
+            if (row+track.size<=exported) {
+                row+=track.size;
+                continue;
+            }
+            for (int p=0; p<track.size; p++, row++) {
+                if (row<exported) continue;
+                rt.incrementCounter();
+                rt.addValue(0, t);
+                rt.addValue(1, track.slice[p]);
+                rt.addValue(2, track.imgNb[p]);
+                rt.addValue(3, track.x[p]);
+                rt.addValue(4, track.y[p]);
+            }
+        }
+        exported=row;
+        rt.show("Tracks");
+    }
+
+    // Stop decoding slices in the background when the plugin is closed
+    public void windowClosed(WindowEvent e) {
+        super.windowClosed(e);
+        if (stack instanceof PrefetchStack) ((PrefetchStack) stack).shutdown();
+    }
+
     public void mousePressed(MouseEvent m) {}
     public void mouseExited(MouseEvent m) {}
     public void mouseClicked(MouseEvent m) {}
     public void mouseEntered(MouseEvent m) {}
 
+
+    // Virtual stack keeping recently viewed slices in memory--------------------
+    // When a slice is requested, the next ones in the same direction are decoded on a background thread, so that moving to the next slice after a click does not wait for the disk. Slices are kept in a LRU cache, bounded by a quarter of the memory available.
+    static class PrefetchStack extends VirtualStack {
+        VirtualStack source;
+        int ahead;
+        int capacity;
+        Map<Integer,Future<ImageProcessor>> cache;
+        ExecutorService pool;
+        int last=0; // Last slice displayed, guarded by cache
+
+        PrefetchStack(VirtualStack source, int ahead, int capacity) {
+            super(source.getWidth(), source.getHeight(), source.getColorModel(), source.getDirectory());
+            this.source=source;
+            this.ahead=ahead;
+            // keep at least the slices decoded ahead and the current one
+            // RGB pixels are stored in ints
+            int pixelBytes=source.getBitDepth()==24 ? 4 : Math.max(1, source.getBitDepth()/8);
+            long sliceBytes=(long) source.getWidth()*source.getHeight()*pixelBytes;
+            long fit=Runtime.getRuntime().maxMemory()/4/Math.max(1, sliceBytes);
+            this.capacity=(int) Math.max(ahead+2, Math.min(capacity, fit));
+            final int max=this.capacity;
+            cache=new LinkedHashMap<Integer,Future<ImageProcessor>>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Integer,Future<ImageProcessor>> eldest) {
+                    return size()>max;
+                }
+            };
+            pool=Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t=new Thread(r, "Manual tracking prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        public ImageProcessor getProcessor(int n) {
+            FutureTask<ImageProcessor> task=null;
+            Future<ImageProcessor> ip;
+            synchronized (cache) {
+                ip=cache.get(n);
+                if (ip==null) {
+                    task=decode(n);
+                    ip=task;
+                    cache.put(n, ip);
+                }
+            }
+            // decode the slice here rather than behind the prefetched ones
+            if (task!=null) task.run();
+
+            // Prefetch the next slices in the direction of the move
+            int step;
+            synchronized (cache) {
+                step=n<last ? -1 : 1;
+                last=n;
+            }
+            for (int k=1; k<=ahead; k++) {
+                int next=n+step*k;
+                if (next<1 || next>getSize()) break;
+                synchronized (cache) {
+                    // get rather than containsKey, so that the slices still ahead are not the eldest
+                    if (cache.get(next)!=null) continue;
+                    task=decode(next);
+                    cache.put(next, task);
+                }
+                pool.execute(task);
+            }
+
+            try {
+                return ip.get();
+            } catch (Exception e) {
+                synchronized (cache) {
+                    cache.remove(n);
+                }
+                return source.getProcessor(n);
+            }
+        }
+
+        // Slice n, from the cache if it is there, without prefetching nor changing the direction of the move: for the slices read besides the one displayed
+        ImageProcessor getCachedProcessor(int n) {
+            Future<ImageProcessor> ip;
+            synchronized (cache) {
+                ip=cache.get(n);
+            }
+            if (ip!=null) {
+                try {
+                    return ip.get();
+                } catch (Exception e) {
+                    // decoded again below
+                }
+            }
+            return source.getProcessor(n);
+        }
+
+        FutureTask<ImageProcessor> decode(final int n) {
+            return new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+                public ImageProcessor call() {
+                    return source.getProcessor(n);
+                }
+            });
+        }
+
+        void shutdown() {
+            pool.shutdownNow();
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+
+        public Object getPixels(int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        public void deleteSlice(int n) {
+            source.deleteSlice(n);
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+
+        public int getSize() {
+            return source.getSize();
+        }
+
+        public int size() {
+            return source.getSize();
+        }
+
+        public String getSliceLabel(int n) {
+            return source.getSliceLabel(n);
+        }
+
+        public String getDirectory() {
+            return source.getDirectory();
+        }
+
+        public String getFileName(int n) {
+            return source.getFileName(n);
+        }
+
+        public int getBitDepth() {
+            return source.getBitDepth();
+        }
+    }
+
+    // Tracked points, stored by track and, within a track, by column---------
+    // Tracks are numbered from 1 in the order of the list, so that deleting a track renumbers the following ones without touching their points. Points are added to the last track only.
+    static class TrackStore {
+        ArrayList<Track> tracks=new ArrayList<Track>();
+        int size=0;  // Total number of points
+
+        static class Track {
+            int size=0;
+            int[] slice=new int[64];
+            double[] imgNb=new double[64];
+            double[] x=new double[64];
+            double[] y=new double[64];
+
+            void add(int sliceNb, double img, double px, double py) {
+                if (size==slice.length) {
+                    int length=2*size;
+                    slice=java.util.Arrays.copyOf(slice, length);
+                    imgNb=java.util.Arrays.copyOf(imgNb, length);
+                    x=java.util.Arrays.copyOf(x, length);
+                    y=java.util.Arrays.copyOf(y, length);
+                }
+                slice[size]=sliceNb;
+                imgNb[size]=img;
+                x[size]=px;
+                y[size]=py;
+                size++;
+            }
+        }
+
+        // Add a point to track trackNb, which is the last track or a new one
+        void add(int trackNb, int sliceNb, double imgNb, double x, double y) {
+            while (tracks.size()<trackNb) tracks.add(new Track());
+            tracks.get(trackNb-1).add(sliceNb, imgNb, x, y);
+            size++;
+        }
+
+        // Delete the last point; tracks left empty at the end are deleted too
+        void removeLast() {
+            dropEmptyTracks();
+            if (tracks.isEmpty()) return;
+            tracks.get(tracks.size()-1).size--;
+            size--;
+            dropEmptyTracks();
+        }
+
+        // Delete a track, in O(number of tracks)
+        void removeTrack(int trackNb) {
+            if (trackNb<1 || trackNb>tracks.size()) return;
+            size-=tracks.remove(trackNb-1).size;
+            dropEmptyTracks();
+        }
+
+        void clear() {
+            tracks.clear();
+            size=0;
+        }
+
+        void dropEmptyTracks() {
+            while (!tracks.isEmpty() && tracks.get(tracks.size()-1).size==0) tracks.remove(tracks.size()-1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getNbTracks() {
+            return tracks.size();
+        }
+
+        Track getTrack(int trackNb) {
+            return tracks.get(trackNb-1);
+        }
+
+        // Number of the track of the last point
+        int getLastTrackNb() {
+            dropEmptyTracks();
+            return tracks.size();
+        }
+
+        // Slice of the last point, 0 when there is none
+        int getLastSlice() {
+            dropEmptyTracks();
+            if (tracks.isEmpty()) return 0;
+            Track last=tracks.get(tracks.size()-1);
+            return last.slice[last.size-1];
+        }
+    }
+
 }
 
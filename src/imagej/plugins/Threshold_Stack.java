@@ -10,6 +10,10 @@ import ij.plugin.filter.RGBStackSplitter;
 import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.filter.Analyzer;
 import ij.measure.*;
+import ij.util.Tools;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.*;
 
 
 public class Threshold_Stack implements PlugInFilter, Measurements {
@@ -25,6 +29,79 @@ public class Threshold_Stack implements PlugInFilter, Measurements {
     ResultsTable rt;
     ResultsTable rp;
 
+    // Bounding box of the aquarium: x, y, width, height
+    int[] aquariumBounds = {410, 62, 1114, 1114};
+    Roi aquarium;
+    // Maximum displacement of the larva between two successive slices, in pixels
+    double maxDistance = 50;
+    // Number of slices without detection after which the larva is considered lost
+    // and searched again on the whole aquarium
+    int maxGap = 10;
+
+    // Process the stack image by image rather than as a whole (see trackStreaming)
+    boolean streaming = false;
+    // Background removed from each image: the next image, or a model of the background updated image by image (see BackgroundSegmenter), which requires streaming
+    static final int FRAME_DIFFERENCE = 0;
+    static final int RUNNING_MEDIAN = 1;
+    static final int RUNNING_AVERAGE = 2;
+    static final String[] BACKGROUNDS = {"Frame difference", "Running median", "Running average"};
+    int background = FRAME_DIFFERENCE;
+    // Number of images whose median initialises the background model
+    int backgroundFrames = 15;
+    // Weight of each new image in the running average
+    double backgroundAlpha = 0.05;
+    // Threshold of the blue component of the difference between successive images
+    int threshold = 29;
+    // Number of threads detecting particles; 0 uses all available processors
+    int threads = 1;
+    // Number of successive slices in which a thread detects particles at once
+    static final int CHUNK = 16;
+
+    // Results table's heading, the same as the one of Manual Tracking
+    String[] head = {"trackNb","sliceNb","imgNb","x","y"};
+
+    // Geometric moments measured on the particles
+    int measurements;
+
+    // Learn the shape of the larva on a few slices before tracking (see calibrate)
+    boolean calibrate = false;
+    // Number of slices sampled to learn the shape of the larva
+    int calibrationSlices = 50;
+    // Maximum squared Mahalanobis distance between the shape of a particle and the learned shape of the larva
+    // 13.28 keeps 99% of the larvae when the shape descriptors are normally distributed
+    double shapeTolerance = 13.28;
+    // Learned shape of the larva, null when the tolerances below are used
+    ShapeModel shape = null;
+
+    // Default tolerances, used as they are when the shape is not learned
+    float meanMajor = 27;
+    float tolMajor = (float) 0.2 * meanMajor;   // 20% tolerance
+    float minMajor = meanMajor - tolMajor;
+    float maxMajor = meanMajor + tolMajor;
+
+    float meanMinor = 8;
+    float tolMinor = (float) 0.3 * meanMinor;   // 20% tolerance
+    float minMinor = meanMinor - tolMinor;
+    float maxMinor = meanMinor + tolMinor;
+
+    float meanArea = 175;
+    double tolArea = (double) 0.6 * meanArea;   // 50% tolerance
+    double minArea = meanArea - tolArea;
+    double maxArea = meanArea + tolArea;
+
+    // Last two positions of the larva, used to predict the next one
+    // the slice is 0 when the position is unknown
+    int lastSlice = 0;
+    double lastX = 0, lastY = 0;
+    int prevSlice = 0;
+    double prevX = 0, prevY = 0;
+    int nDetected = 0;
+
+    // Number of the image of each slice of the original stack
+    double[] imgNb;
+    // Particles detected on every slice of the difference stack
+    Particles particles;
+
 
     public int setup(String arg, ImagePlus im1) {
         this.im1 = im1;
@@ -33,6 +110,57 @@ public class Threshold_Stack implements PlugInFilter, Measurements {
 
     public void run(ImageProcessor ip) {
 
+        // Get options and the selection of the aquarium, before the stack is modified
+        readOptions(Macro.getOptions());
+        aquarium = im1.getRoi();
+        // use the area selection on the original stack when there is one, the bounding box given as option otherwise
+        if (aquarium == null || !aquarium.isArea()) {
+            aquarium = new OvalRoi(aquariumBounds[0], aquariumBounds[1], aquariumBounds[2], aquariumBounds[3]);
+        }
+
+        // Set the geometric moments that are measured
+        Analyzer a = new Analyzer(im1);
+        a.setMeasurement(CENTROID, true);
+        a.setMeasurement(ELLIPSE, true);
+        a.setMeasurement(AREA, true);
+        a.setMeasurement(SHAPE_DESCRIPTORS, true);
+        measurements = a.getMeasurements();
+
+        // Keep the image numbers, the original slices are discarded when processing the whole stack
+        ImageStack stack = im1.getStack();
+        imgNb = new double[stack.getSize() + 1];
+        for (int i=1; i<=stack.getSize(); i++) {
+            imgNb[i] = getImageNumber(stack.getSliceLabel(i), i);
+        }
+
+        // Prepare the tracks result table, with its columns even when no larva is found
+        rt = new ResultsTable();
+        for (int h=0; h<head.length; h++) rt.getFreeColumn(head[h]);
+        lastSlice = 0;
+        prevSlice = 0;
+        nDetected = 0;
+        shape = null;
+
+        // Track the larva on the whole stack at once, or image by image
+        // the background model is only computed image by image
+        if (background != FRAME_DIFFERENCE) {
+            streaming = true;
+        }
+        int n;
+        if (streaming) {
+            n = trackStreaming();
+        } else {
+            n = trackStack();
+        }
+
+        rt.show("Tracks");
+        IJ.showStatus("Larva detected on " + nDetected + " of " + n + " slices");
+    }
+
+    // Track the larva by processing the whole stack at once
+    // returns the number of slices of the difference stack
+    int trackStack() {
+
         // Compute the image per image difference of the stack
         //------------------------------------------------------------
         // The goal is to suppress as much of the background as possible and images that are next to each other in a sequence are those that have the most similar backgrounds.
@@ -77,13 +205,12 @@ public class Threshold_Stack implements PlugInFilter, Measurements {
         imB.show();
 
         // Isolate the aquarium
-        IJ.setTool(1);
-        IJ.makeOval(410, 62, 1114, 1114);
+        imB.setRoi(aquarium);
         IJ.run("Clear Outside", "stack");
 
         // Threshold the image to black and white
         // IJ.run("Threshold", "thresholded remaining stack");
-        IJ.setThreshold(29, 255);
+        IJ.setThreshold(threshold, 255);
         IJ.run("Convert to Mask", " ");
 
         imB.updateAndDraw();
@@ -119,86 +246,716 @@ public class Threshold_Stack implements PlugInFilter, Measurements {
         //------------------------------------------------------------
         // Use the particle analyser to follow the larva. We start by detecting all particles on each slice and then filter out those that do not match the characteristics of the larva
 
-        ImageStack stackB = imB.getStack();
+        final ImageStack stackB = imB.getStack();
         // stack size
         int n = imB.getImageStackSize();
 
-        // Set the geometric moments that are measured
-        Analyzer a = new Analyzer(imB);
-        a.setMeasurement(CENTROID, true);
-        a.setMeasurement(ELLIPSE, true);
-        a.setMeasurement(AREA, true);
-        int measurements = a.getMeasurements();
-
-        // Set tolerances manually for now
-        float meanMajor = 27;
-        float tolMajor = (float) 0.2 * meanMajor;   // 20% tolerance
-        float minMajor = meanMajor - tolMajor;
-        float maxMajor = meanMajor + tolMajor;
-
-        float meanMinor = 8;
-        float tolMinor = (float) 0.3 * meanMinor;   // 20% tolerance
-        float minMinor = meanMinor - tolMinor;
-        float maxMinor = meanMinor + tolMinor;
-
-        float meanArea = 175;
-        double tolArea = (double) 0.6 * meanArea;   // 50% tolerance
-        double minArea = meanArea - tolArea;
-        double maxArea = meanArea + tolArea;
-
-        // Prepare per slice and total result tables
-        ResultsTable r = new ResultsTable();
-        ResultsTable rtmp = new ResultsTable();
+        track(n, new SegmenterFactory() {
+            public Segmenter create() {
+                return new Segmenter() {
+                    public ImageProcessor segment(int slice) {
+                        return stackB.getProcessor(slice);
+                    }
+                };
+            }
+        }, false);
+
+        return n;
+    }
 
-        for (int i=1; i<=n; i++) {
-            System.out.println("Slice "+i);
+    // Track the larva by processing images one by one
+    // Only the two images being subtracted are in memory at any time, so this works on virtual stacks of any length. The difference, the extraction of the blue component, the isolation of the aquarium and the threshold are fused in a single pass over the pixels, which gives the same particles as the operations on the whole stack
+    // With a background model, each image is compared to the model instead of the next image
+    // returns the number of slices of the difference stack
+    int trackStreaming() {
+        final ImageStack stack = im1.getStack();
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+
+        // Pixels inside the aquarium
+        ImageProcessor inside = new ByteProcessor(width, height);
+        inside.setColor(255);
+        inside.fill(aquarium);
+        final byte[] in = (byte[]) inside.getPixels();
+
+        if (background != FRAME_DIFFERENCE) {
+            int n = stack.getSize();
+            track(n, new SegmenterFactory() {
+                public Segmenter create() {
+                    return new BackgroundSegmenter(stack, in);
+                }
+            }, true);
+            return n;
+        }
 
-            // Clear per-slice table
-            rtmp.reset();
+        int n = stack.getSize() - 1;
+        track(n, new SegmenterFactory() {
+            public Segmenter create() {
+                return new Segmenter() {
+                    // Binary image of the particles, reused for every slice
+                    ByteProcessor mask = new ByteProcessor(width, height);
+                    byte[] out = (byte[]) mask.getPixels();
+                    // Last image read, which is the first one of the next difference
+                    int currentSlice = 0;
+                    int[] current;
+
+                    public ImageProcessor segment(int slice) {
+                        if (slice != currentSlice) {
+                            current = getRGBPixels(stack, slice);
+                        }
+                        int[] next = getRGBPixels(stack, slice + 1);
+
+                        // Subtract the next image and threshold the blue component of the difference, inside the aquarium
+                        // the subtraction of RGB images is clipped at 0 for each component
+                        for (int p=0; p<out.length; p++) {
+                            int blue = (current[p] & 0xff) - (next[p] & 0xff);
+                            out[p] = (in[p] != 0 && blue >= threshold) ? (byte) 255 : (byte) 0;
+                        }
+
+                        currentSlice = slice + 1;
+                        current = next;
+                        return mask;
+                    }
+                };
+            }
+        }, false);
 
-            // Create particle analyzer with no options and a size filter
-            ParticleAnalyzer pa = new ParticleAnalyzer(0, measurements, rtmp, minArea, maxArea);
-            // Analyse particles
-            pa.analyze(imB, stackB.getProcessor(i));
+        return n;
+    }
 
-            rtmp.show("Particles");
+    // Compare images to a model of the background, updated image by image
+    // The model is the per pixel median of the blue component of the first images, then follows the sequence either as an approximate running median (moved by one grey level towards each new image) or as an exponential running average. Unlike the difference of successive images, this gives a single particle for a moving larva, and still detects it when it stops. Only the first images, until the model is initialised, are kept in memory.
+    // Images must be segmented in order
+    class BackgroundSegmenter implements Segmenter {
+        ImageStack stack;
+        byte[] in;
+        // Blue component of the background
+        float[] model;
+        // Blue component of the first images, used to initialise the model and then segmented
+        byte[][] buffer;
+        ByteProcessor mask;
+        byte[] out;
+
+        BackgroundSegmenter(ImageStack stack, byte[] in) {
+            this.stack = stack;
+            this.in = in;
+            mask = new ByteProcessor(stack.getWidth(), stack.getHeight());
+            out = (byte[]) mask.getPixels();
+        }
 
-            // Nb of particles
-            int nP = rtmp.getCounter();
-            System.out.println("  nb of particles "+nP);
+        public ImageProcessor segment(int slice) {
+            if (model == null) {
+                initialise();
+            }
+            byte[] blue = slice <= buffer.length ? buffer[slice - 1] : getBlue(stack, slice);
 
-            // Filter particles
-            // whether particles match the characteristics of the larva or not
-            boolean[] match = new boolean[nP];
-            // initially all matching
-            for (int m=0; m<=nP-1; m++) {
-                match[m] = true;
+            // Subtract the background and threshold, inside the aquarium
+            for (int p=0; p<out.length; p++) {
+                int v = blue[p] & 0xff;
+                out[p] = (in[p] != 0 && v - model[p] >= threshold) ? (byte) 255 : (byte) 0;
             }
-            // nb of matching particles
-            int nPgood = nP;
 
-            // Filter based on parameters of the gest fit ellipse
-            float[] ellipsMajor = rtmp.getColumn(rtmp.getColumnIndex("Major"));
-            float[] ellipsMinor = rtmp.getColumn(rtmp.getColumnIndex("Minor"));
-            for (int m=0; m<=nP-1; m++) {
-                if (ellipsMajor[m] < minMajor || ellipsMajor[m] > maxMajor || ellipsMinor[m] < minMinor || ellipsMinor[m] > maxMinor) {
-                    match[m] = false;
-                    nPgood--;
+            // Update the background with the image
+            if (background == RUNNING_MEDIAN) {
+                for (int p=0; p<model.length; p++) {
+                    int v = blue[p] & 0xff;
+                    if (v > model[p]) {
+                        model[p]++;
+                    } else if (v < model[p]) {
+                        model[p]--;
+                    }
+                }
+            } else {
+                float alpha = (float) backgroundAlpha;
+                for (int p=0; p<model.length; p++) {
+                    model[p] += alpha * ((blue[p] & 0xff) - model[p]);
                 }
             }
 
-            System.out.print("  "+nPgood);
+            // The buffer is not needed once all its images are segmented
+            if (slice == buffer.length) {
+                buffer = new byte[0][];
+            }
+            return mask;
+        }
 
-            switch (nPgood) {
-                case 0: System.out.println(" => No good particle");
-                break;
-                case 1: System.out.println(" => One good particle");
-                break;
-                default: System.out.println(" => Several good particles");
+        void initialise() {
+            int n = Math.max(1, Math.min(backgroundFrames, stack.getSize()));
+            buffer = new byte[n][];
+            for (int k=0; k<n; k++) {
+                buffer[k] = getBlue(stack, k + 1);
+            }
+            model = new float[out.length];
+            int[] values = new int[n];
+            for (int p=0; p<model.length; p++) {
+                for (int k=0; k<n; k++) {
+                    values[k] = buffer[k][p] & 0xff;
+                }
+                Arrays.sort(values);
+                model[p] = n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2f;
             }
         }
     }
 
+    // Get the blue component of a slice
+    byte[] getBlue(ImageStack stack, int slice) {
+        int[] pixels = getRGBPixels(stack, slice);
+        byte[] blue = new byte[pixels.length];
+        for (int p=0; p<pixels.length; p++) {
+            blue[p] = (byte) pixels[p];
+        }
+        return blue;
+    }
+
+    // Binary image of the particles of each slice, where particles are 255
+    // A segmenter is used by one thread only
+    interface Segmenter {
+        ImageProcessor segment(int slice);
+    }
+
+    interface SegmenterFactory {
+        Segmenter create();
+    }
+
+    // Particles detected on successive slices, stored by column
+    // the particles of a slice are those from getStart(slice) to getEnd(slice) - 1
+    static class Particles {
+        int first;
+        int nSlices = 0;
+        int[] start = new int[CHUNK + 1];
+        int size = 0;
+        float[] x = new float[64];
+        float[] y = new float[64];
+        float[] area = new float[64];
+        float[] major = new float[64];
+        float[] minor = new float[64];
+        float[] circularity = new float[64];
+
+        Particles(int first) {
+            this.first = first;
+        }
+
+        int getStart(int slice) {
+            return start[slice - first];
+        }
+
+        int getEnd(int slice) {
+            return start[slice - first + 1];
+        }
+
+        // Add the particles measured on the next slice
+        void add(ResultsTable rt) {
+            int n = rt.getCounter();
+            ensureCapacity(nSlices + 1, size + n);
+            if (n > 0) {
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("X")), 0, x, size, n);
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("Y")), 0, y, size, n);
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("Area")), 0, area, size, n);
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("Major")), 0, major, size, n);
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("Minor")), 0, minor, size, n);
+                System.arraycopy(rt.getColumn(rt.getColumnIndex("Circ.")), 0, circularity, size, n);
+            }
+            size += n;
+            start[++nSlices] = size;
+        }
+
+        // Add the particles of the slices that follow
+        void add(Particles p) {
+            ensureCapacity(nSlices + p.nSlices, size + p.size);
+            System.arraycopy(p.x, 0, x, size, p.size);
+            System.arraycopy(p.y, 0, y, size, p.size);
+            System.arraycopy(p.area, 0, area, size, p.size);
+            System.arraycopy(p.major, 0, major, size, p.size);
+            System.arraycopy(p.minor, 0, minor, size, p.size);
+            System.arraycopy(p.circularity, 0, circularity, size, p.size);
+            for (int k=1; k<=p.nSlices; k++) {
+                start[nSlices + k] = size + p.start[k];
+            }
+            nSlices += p.nSlices;
+            size += p.size;
+        }
+
+        void ensureCapacity(int slices, int particles) {
+            if (slices >= start.length) {
+                start = Arrays.copyOf(start, Math.max(slices + 1, 2 * start.length));
+            }
+            if (particles > x.length) {
+                int length = Math.max(particles, 2 * x.length);
+                x = Arrays.copyOf(x, length);
+                y = Arrays.copyOf(y, length);
+                area = Arrays.copyOf(area, length);
+                major = Arrays.copyOf(major, length);
+                minor = Arrays.copyOf(minor, length);
+                circularity = Arrays.copyOf(circularity, length);
+            }
+        }
+    }
+
+    // Detect particles on slices 1 to n and follow the larva through them
+    // Slices are segmented and analysed by chunks, in parallel, but the larva is followed in order, as chunks are done
+    // When slices must be segmented in order, they are segmented on this thread and only analysed in parallel
+    void track(int n, SegmenterFactory factory, boolean inOrder) {
+        final ConcurrentLinkedQueue<Segmenter> segmenters = new ConcurrentLinkedQueue<Segmenter>();
+        int nThreads = Math.max(1, Math.min(threads, inOrder ? n : (n + CHUNK - 1) / CHUNK));
+        for (int t=0; t<(inOrder ? 1 : nThreads); t++) {
+            segmenters.add(factory.create());
+        }
+
+        if (calibrate) {
+            // a segmenter which works in order is used once for the calibration, on the first slices
+            Segmenter segmenter = inOrder ? factory.create() : segmenters.peek();
+            calibrate(n, segmenter, inOrder);
+        }
+
+        particles = new Particles(1);
+
+        // Run the only thread on the current one, there is nothing to gain from a pool
+        if (nThreads == 1) {
+            Segmenter segmenter = segmenters.poll();
+            for (int i=1; i<=n; i++) {
+                particles.add(findParticles(segmenter.segment(i)));
+                selectParticles(i, i);
+                showProgress(i, n);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        if (inOrder) {
+            trackInOrder(n, segmenters.poll(), pool, nThreads);
+            return;
+        }
+        LinkedList<Future<Particles>> pending = new LinkedList<Future<Particles>>();
+        try {
+            for (int first=1; first<=n; first+=CHUNK) {
+                final int from = first;
+                final int to = Math.min(first + CHUNK - 1, n);
+                pending.add(pool.submit(new Callable<Particles>() {
+                    public Particles call() {
+                        Segmenter segmenter = segmenters.poll();
+                        try {
+                            Particles chunk = new Particles(from);
+                            for (int i=from; i<=to; i++) {
+                                chunk.add(findParticles(segmenter.segment(i)));
+                            }
+                            return chunk;
+                        }
+                        finally {
+                            segmenters.add(segmenter);
+                        }
+                    }
+                }));
+            }
+
+            // Follow the larva in the oldest chunk, in order
+            while (!pending.isEmpty()) {
+                Particles chunk = pending.removeFirst().get();
+                particles.add(chunk);
+                int last = chunk.first + chunk.nSlices - 1;
+                selectParticles(chunk.first, last);
+                showProgress(last, n);
+            }
+        }
+        catch (InterruptedException e) {
+            IJ.error("Tracking was interrupted.");
+        }
+        catch (ExecutionException e) {
+            IJ.error("Tracking failed: " + e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Segment slices in order on this thread and detect their particles on the pool
+    void trackInOrder(int n, Segmenter segmenter, ExecutorService pool, int nThreads) {
+        LinkedList<Future<ResultsTable>> pending = new LinkedList<Future<ResultsTable>>();
+        int next = 1;
+        try {
+            for (int i=1; i<=n; i++) {
+                // the segmenter reuses its mask
+                final ImageProcessor mask = segmenter.segment(i).duplicate();
+                pending.add(pool.submit(new Callable<ResultsTable>() {
+                    public ResultsTable call() {
+                        return findParticles(mask);
+                    }
+                }));
+                // Follow the larva in the oldest slices, in order
+                while (pending.size() > 2 * nThreads || (i == n && !pending.isEmpty())) {
+                    particles.add(pending.removeFirst().get());
+                    selectParticles(next, next);
+                    showProgress(next, n);
+                    next++;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            IJ.error("Tracking was interrupted.");
+        }
+        catch (ExecutionException e) {
+            IJ.error("Tracking failed: " + e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Learn the shape of the larva
+    // Particles are detected on slices evenly spread over the stack, or on the first slices when they must be segmented in order. On the slices where only one particle matches the default tolerances, it is the larva, and the distribution of its shape descriptors is estimated from those
+    void calibrate(int n, Segmenter segmenter, boolean inOrder) {
+        int nSamples = Math.min(calibrationSlices, n);
+        double[][] samples = new double[nSamples][];
+        int nGood = 0;
+        for (int k=0; k<nSamples; k++) {
+            int slice = inOrder ? k + 1 : 1 + (int) ((long) k * (n - 1) / Math.max(nSamples - 1, 1));
+            Particles sample = new Particles(slice);
+            sample.add(findParticles(segmenter.segment(slice)));
+            int larva = -1;
+            int nMatching = 0;
+            for (int m=sample.getStart(slice); m<sample.getEnd(slice); m++) {
+                if (matchesTolerances(sample, m)) {
+                    larva = m;
+                    nMatching++;
+                }
+            }
+            if (nMatching == 1) {
+                samples[nGood++] = ShapeModel.getFeatures(sample, larva);
+            }
+        }
+
+        shape = ShapeModel.fit(samples, nGood);
+        if (shape == null) {
+            IJ.log("Threshold Stack: the larva was found alone on " + nGood + " of " + nSamples + " slices only, its shape could not be learned. Using default tolerances.");
+        } else {
+            IJ.log("Threshold Stack: larva shape learned on " + shape.n + " of " + nSamples + " slices: " + shape);
+        }
+    }
+
+    // Multivariate normal model of the shape of the larva
+    // The descriptors are the logarithms of the area and of the axes of the best fit ellipse, which vary proportionally with the size of the larva, and the circularity
+    static class ShapeModel {
+        static final int DIM = 4;
+        static final String[] NAMES = {"area", "major", "minor", "circularity"};
+        // Minimum variance of each descriptor, which keeps the model usable when it is learned on few, similar, particles (5% for sizes, 0.02 for the circularity)
+        static final double[] MIN_VARIANCE = {0.05*0.05, 0.05*0.05, 0.05*0.05, 0.02*0.02};
+
+        // Number of samples the model is fitted to
+        int n;
+        double[] mean = new double[DIM];
+        double[][] covariance = new double[DIM][DIM];
+        double[][] inverse;
+
+        static double[] getFeatures(Particles p, int m) {
+            double[] f = {Math.log(p.area[m]), Math.log(p.major[m]), Math.log(p.minor[m]), p.circularity[m]};
+            return f;
+        }
+
+        // Fit the model to n samples; returns null when there are too few of them
+        // Some samples may be other particles, when the larva itself was not detected, so samples further than 3 robust standard deviations (1.4826 median absolute deviations) from the median on any descriptor are discarded first
+        static ShapeModel fit(double[][] samples, int n) {
+            double[] median = new double[DIM];
+            double[] mad = new double[DIM];
+            double[] values = new double[n];
+            for (int i=0; i<DIM; i++) {
+                for (int k=0; k<n; k++) {
+                    values[k] = samples[k][i];
+                }
+                median[i] = median(values, n);
+                for (int k=0; k<n; k++) {
+                    values[k] = Math.abs(samples[k][i] - median[i]);
+                }
+                mad[i] = Math.max(1.4826 * median(values, n), Math.sqrt(MIN_VARIANCE[i]));
+            }
+            double[][] kept = new double[n][];
+            int nKept = 0;
+            for (int k=0; k<n; k++) {
+                boolean outlier = false;
+                for (int i=0; i<DIM; i++) {
+                    outlier |= Math.abs(samples[k][i] - median[i]) > 3 * mad[i];
+                }
+                if (!outlier) {
+                    kept[nKept++] = samples[k];
+                }
+            }
+            samples = kept;
+            n = nKept;
+
+            if (n < 2 * DIM) {
+                return null;
+            }
+            ShapeModel model = new ShapeModel();
+            model.n = n;
+            for (int k=0; k<n; k++) {
+                for (int i=0; i<DIM; i++) {
+                    model.mean[i] += samples[k][i] / n;
+                }
+            }
+            for (int k=0; k<n; k++) {
+                for (int i=0; i<DIM; i++) {
+                    for (int j=0; j<DIM; j++) {
+                        model.covariance[i][j] += (samples[k][i] - model.mean[i]) * (samples[k][j] - model.mean[j]) / (n - 1);
+                    }
+                }
+            }
+            for (int i=0; i<DIM; i++) {
+                model.covariance[i][i] += MIN_VARIANCE[i];
+            }
+            model.inverse = invert(model.covariance);
+            return model.inverse == null ? null : model;
+        }
+
+        static double median(double[] values, int n) {
+            if (n == 0) {
+                return 0;
+            }
+            double[] sorted = Arrays.copyOf(values, n);
+            Arrays.sort(sorted);
+            return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+        }
+
+        // Squared Mahalanobis distance between the shape of a particle and that of the larva
+        double distance(double[] f) {
+            double d = 0;
+            for (int i=0; i<DIM; i++) {
+                for (int j=0; j<DIM; j++) {
+                    d += (f[i] - mean[i]) * inverse[i][j] * (f[j] - mean[j]);
+                }
+            }
+            return d;
+        }
+
+        // Invert a matrix by Gauss-Jordan elimination with partial pivoting; returns null when it is singular
+        static double[][] invert(double[][] m) {
+            int n = m.length;
+            double[][] a = new double[n][2 * n];
+            for (int i=0; i<n; i++) {
+                System.arraycopy(m[i], 0, a[i], 0, n);
+                a[i][n + i] = 1;
+            }
+            for (int c=0; c<n; c++) {
+                int pivot = c;
+                for (int r=c+1; r<n; r++) {
+                    if (Math.abs(a[r][c]) > Math.abs(a[pivot][c])) {
+                        pivot = r;
+                    }
+                }
+                if (Math.abs(a[pivot][c]) < 1e-12) {
+                    return null;
+                }
+                double[] tmp = a[c]; a[c] = a[pivot]; a[pivot] = tmp;
+                double p = a[c][c];
+                for (int j=0; j<2*n; j++) {
+                    a[c][j] /= p;
+                }
+                for (int r=0; r<n; r++) {
+                    if (r != c && a[r][c] != 0) {
+                        double f = a[r][c];
+                        for (int j=0; j<2*n; j++) {
+                            a[r][j] -= f * a[c][j];
+                        }
+                    }
+                }
+            }
+            double[][] inv = new double[n][n];
+            for (int i=0; i<n; i++) {
+                System.arraycopy(a[i], n, inv[i], 0, n);
+            }
+            return inv;
+        }
+
+        // Mean and standard deviation of each descriptor, in the units of the particle analyzer
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i=0; i<DIM; i++) {
+                double sd = Math.sqrt(covariance[i][i] - MIN_VARIANCE[i]);
+                if (i < 3) {
+                    // log-normal: geometric mean and relative spread
+                    sb.append(NAMES[i] + " " + IJ.d2s(Math.exp(mean[i]), 1) + " (+/-" + IJ.d2s(100 * sd, 0) + "%)");
+                } else {
+                    sb.append(NAMES[i] + " " + IJ.d2s(mean[i], 2) + " (+/-" + IJ.d2s(sd, 2) + ")");
+                }
+                sb.append(i < DIM - 1 ? ", " : "");
+            }
+            return sb.toString();
+        }
+    }
+
+    // Whether a particle matches the default tolerances on the best fit ellipse
+    boolean matchesTolerances(Particles p, int m) {
+        return p.major[m] >= minMajor && p.major[m] <= maxMajor && p.minor[m] >= minMinor && p.minor[m] <= maxMinor;
+    }
+
+    // Choose the larva on slices first to last
+    void selectParticles(int first, int last) {
+        for (int i=first; i<=last; i++) {
+            selectParticle(particles, i, imgNb[i]);
+        }
+    }
+
+    // Show the progress of the tracking at most every percent
+    void showProgress(int i, int n) {
+        if (i == n || (100 * i) / n != (100 * (i - 1)) / n) {
+            IJ.showProgress(i, n);
+        }
+    }
+
+    // Get the pixels of a slice as RGB
+    int[] getRGBPixels(ImageStack stack, int slice) {
+        ImageProcessor ip = stack.getProcessor(slice);
+        if (!(ip instanceof ColorProcessor)) {
+            ip = ip.convertToRGB();
+        }
+        return (int[]) ip.getPixels();
+    }
+
+    // Detect the particles of a binary slice which have the size of the larva
+    ResultsTable findParticles(ImageProcessor ip) {
+        ResultsTable rtmp = new ResultsTable();
+        // Particles are 255, whatever the LUT
+        ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        // Create particle analyzer with no options and a size filter
+        ParticleAnalyzer pa = new ParticleAnalyzer(0, measurements, rtmp, minArea, maxArea);
+        // Analyse particles
+        pa.analyze(new ImagePlus("mask.tif", ip), ip);
+        return rtmp;
+    }
+
+    // Choose the larva among the particles of a slice and add its position to the tracks
+    // returns whether the larva was found
+    boolean selectParticle(Particles particles, int slice, double imgNb) {
+        // Nb of particles
+        int nP = particles.getEnd(slice) - particles.getStart(slice);
+        if (nP == 0) {
+            return false;
+        }
+
+        // Forget the larva when it has not been detected for too long
+        if (lastSlice > 0 && slice - lastSlice > maxGap) {
+            lastSlice = 0;
+            prevSlice = 0;
+        }
+
+        // Predict the position of the larva on this slice
+        // assume constant velocity since the last two detections, or no motion after the first one
+        double predX = lastX;
+        double predY = lastY;
+        if (prevSlice > 0) {
+            double t = (double) (slice - lastSlice) / (lastSlice - prevSlice);
+            predX += t * (lastX - prevX);
+            predY += t * (lastY - prevY);
+        }
+
+        // Filter based on the shape of the particles and choose among the matching particles
+        // the shape is compared to the learned shape of the larva when there is one, to the default tolerances on the best fit ellipse otherwise
+        // - when the position of the larva is known, the particle closest to the predicted position, provided it is within reach (and with the most likely shape, when it is learned)
+        // - otherwise, the particle whose shape is closest to that of the larva
+        float[] ellipsMajor = particles.major;
+        float[] ellipsMinor = particles.minor;
+        float[] area = particles.area;
+        float[] x = particles.x;
+        float[] y = particles.y;
+        int best = -1;
+        double bestScore = Double.MAX_VALUE;
+        for (int m=particles.getStart(slice); m<particles.getEnd(slice); m++) {
+            double shapeDistance = 0;
+            if (shape != null) {
+                shapeDistance = shape.distance(ShapeModel.getFeatures(particles, m));
+                if (shapeDistance > shapeTolerance) {
+                    continue;
+                }
+            } else if (!matchesTolerances(particles, m)) {
+                continue;
+            }
+            double score;
+            if (lastSlice > 0) {
+                double dx = x[m] - predX;
+                double dy = y[m] - predY;
+                double reach = maxDistance * (slice - lastSlice);
+                score = Math.sqrt(dx*dx + dy*dy);
+                if (score > reach) {
+                    continue;
+                }
+                // with a learned shape, combine the likelihoods of the position and of the shape
+                // the error of the prediction is considered normal, with the maximum distance at two standard deviations
+                if (shape != null) {
+                    score = 4 * (dx*dx + dy*dy) / (reach * reach) + shapeDistance;
+                }
+            } else if (shape != null) {
+                score = shapeDistance;
+            } else {
+                score = Math.abs(ellipsMajor[m] - meanMajor) / tolMajor + Math.abs(ellipsMinor[m] - meanMinor) / tolMinor + Math.abs(area[m] - meanArea) / tolArea;
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                best = m;
+            }
+        }
+
+        if (best < 0) {
+            return false;
+        }
+
+        // Record the position of the larva
+        prevSlice = lastSlice;
+        prevX = lastX;
+        prevY = lastY;
+        lastSlice = slice;
+        lastX = x[best];
+        lastY = y[best];
+        nDetected++;
+
+        // Add it to the tracks, in the same format as Manual Tracking
+        // the difference slice i is image i minus image i+1 (or minus the background), so the particle is on image i
+        // the y axis points upwards, as in Manual Tracking
+        double[] doub = {1, slice, imgNb, lastX, im1.getHeight() - lastY};
+        rt.incrementCounter();
+        for (int j=0; j<doub.length; j++) rt.addValue(head[j], doub[j]);
+        return true;
+    }
+
+    // Read the options given as "key=value" pairs
+    // e.g. "aquarium=410,62,1114,1114 max_distance=50 max_gap=10 streaming threads=4 calibrate background=[Running median]"
+    void readOptions(String options) {
+        options = options == null ? "" : options;
+        String bounds = Macro.getValue(options, "aquarium", null);
+        if (bounds != null) {
+            String[] b = Tools.split(bounds, ",");
+            if (b.length == 4) {
+                for (int k=0; k<4; k++) {
+                    aquariumBounds[k] = (int) Tools.parseDouble(b[k], aquariumBounds[k]);
+                }
+            }
+        }
+        maxDistance = Tools.parseDouble(Macro.getValue(options, "max_distance", null), maxDistance);
+        maxGap = (int) Tools.parseDouble(Macro.getValue(options, "max_gap", null), maxGap);
+        threshold = (int) Tools.parseDouble(Macro.getValue(options, "threshold", null), threshold);
+        threads = (int) Tools.parseDouble(Macro.getValue(options, "threads", null), threads);
+        calibrate = (" " + options + " ").indexOf(" calibrate ") >= 0;
+        calibrationSlices = (int) Tools.parseDouble(Macro.getValue(options, "calibration_slices", null), calibrationSlices);
+        shapeTolerance = Tools.parseDouble(Macro.getValue(options, "shape_tolerance", null), shapeTolerance);
+        String name = Macro.getValue(options, "background", BACKGROUNDS[background]);
+        for (int k=0; k<BACKGROUNDS.length; k++) {
+            if (BACKGROUNDS[k].equals(name)) {
+                background = k;
+            }
+        }
+        backgroundFrames = (int) Tools.parseDouble(Macro.getValue(options, "background_frames", null), backgroundFrames);
+        backgroundAlpha = Tools.parseDouble(Macro.getValue(options, "background_alpha", null), backgroundAlpha);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        streaming = (" " + options + " ").indexOf(" streaming ") >= 0;
+    }
+
+    // Get the number of an image from the label of its slice, e.g. 123 for "123.jpg"
+    // as Manual Tracking does; fall back on the slice number when the label is not a number
+    double getImageNumber(String label, int slice) {
+        if (label == null || label.indexOf(".") <= 0) {
+            return slice;
+        }
+        return Tools.parseDouble(label.substring(0, label.indexOf(".")), slice);
+    }
+
     // public void mouseReleased(MouseEvent m) {
     //     // Get clicked coordinates
     //     int x = m.getX();
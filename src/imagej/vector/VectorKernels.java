@@ -0,0 +1,242 @@
+//
+//  Vector kernels of the Image Stabilizer
+//
+//  Loops over the pixels of Image_Stabilizer.Kernels written with the
+//  Vector API, to use the vector instructions of the processor
+//
+//  (c) Copyright 2005-2011 J-O Irisson, C Paris
+//  GNU General Public License
+//  Read the file 'src/GNU_GPL.txt' for more information
+//
+//------------------------------------------------------------
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+    The Vector API is an incubator module of Java 16 and later, which
+    javac only finds when it is added explicitly, so this class is kept
+    out of the plugins directory, where all sources are compiled at once
+    (see compile_plugins in lib_discus.sh). It is compiled after them,
+    into the same directory, when the module is available:
+        javac --add-modules jdk.incubator.vector -cp ij.jar:plugins \
+            -d plugins vector/VectorKernels.java
+    and used by the Image Stabilizer when Java is started with
+        java --add-modules jdk.incubator.vector ...
+
+    Products of floats are summed as doubles, as in the scalar loops, but
+    converting every product is slower than the loop itself: each lane
+    first sums BLOCK products as floats, which are then converted, in two
+    halves of a vector of the preferred size (e.g. 16 floats, then twice 8
+    doubles, with AVX-512). The products are rounded to floats anyway, so
+    the sums are about as precise. The sums of squares and dot products of
+    subtractDotSums are accumulated in one pass over the images.
+*/
+class VectorKernels extends Image_Stabilizer.Kernels {
+
+    static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+    static final int LANES = F.length();
+    // vectors of products summed as floats before being converted
+    static final int BLOCK = 8;
+
+    String getName() {
+        return "vector (" + LANES + " floats)";
+    }
+
+    /* Pairwise sums of the lanes of v, as doubles */
+    static DoubleVector widen(FloatVector v) {
+        return ((DoubleVector)v.convertShape(VectorOperators.F2D, D, 0))
+            .add((DoubleVector)v.convertShape(VectorOperators.F2D, D, 1));
+    }
+
+    double dotSum(float[] p1, int offset1, float[] p2, int offset2, int n) {
+        DoubleVector acc = DoubleVector.zero(D);
+        int end = F.loopBound(n);
+        int i = 0;
+        while (i < end) {
+            int blockEnd = Math.min(end, i + BLOCK * LANES);
+            FloatVector f = FloatVector.zero(F);
+            for (; i < blockEnd; i += LANES) {
+                FloatVector v1 = FloatVector.fromArray(F, p1, offset1 + i);
+                FloatVector v2 = FloatVector.fromArray(F, p2, offset2 + i);
+                f = v1.fma(v2, f);
+            }
+            acc = acc.add(widen(f));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; ++i)
+            sum += p1[offset1 + i] * p2[offset2 + i];
+        return sum;
+    }
+
+    double dotSum(float[] p1, float[] p2, int[] runs) {
+        DoubleVector acc = DoubleVector.zero(D);
+        double sum = 0.0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int i = runs[r];
+            int end = i + F.loopBound(runs[r + 1] - i);
+            while (i < end) {
+                int blockEnd = Math.min(end, i + BLOCK * LANES);
+                FloatVector f = FloatVector.zero(F);
+                for (; i < blockEnd; i += LANES) {
+                    FloatVector v1 = FloatVector.fromArray(F, p1, i);
+                    FloatVector v2 = FloatVector.fromArray(F, p2, i);
+                    f = v1.fma(v2, f);
+                }
+                acc = acc.add(widen(f));
+            }
+            for (; i < runs[r + 1]; ++i)
+                sum += p1[i] * p2[i];
+        }
+        return sum + acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    void dot(float[] p1, float[] p2, float[] output, int n) {
+        int end = F.loopBound(n);
+        int i = 0;
+        for (; i < end; i += LANES) {
+            FloatVector.fromArray(F, p1, i)
+                .mul(FloatVector.fromArray(F, p2, i))
+                .intoArray(output, i);
+        }
+        for (; i < n; ++i)
+            output[i] = p1[i] * p2[i];
+    }
+
+    double sumOfSquares(float[] pixels, int[] runs) {
+        return dotSum(pixels, pixels, runs);
+    }
+
+    void subtract(float[] outPixels, float[] pixels, int[] runs) {
+        for (int r = 0; r < runs.length; r += 2) {
+            int i = runs[r];
+            int end = i + F.loopBound(runs[r + 1] - i);
+            for (; i < end; i += LANES) {
+                FloatVector.fromArray(F, outPixels, i)
+                    .sub(FloatVector.fromArray(F, pixels, i))
+                    .intoArray(outPixels, i);
+            }
+            for (; i < runs[r + 1]; ++i)
+                outPixels[i] = outPixels[i] - pixels[i];
+        }
+    }
+
+    /* Computed on floats rather than doubles, which differs in the last digit at most */
+    void combine(float[] outPixels, float[] pixels, double alpha) {
+        float a = (float)alpha;
+        float b = (float)(1.0 - alpha);
+        int n = pixels.length;
+        int end = F.loopBound(n);
+        int i = 0;
+        for (; i < end; i += LANES) {
+            FloatVector v = FloatVector.fromArray(F, pixels, i);
+            FloatVector out = FloatVector.fromArray(F, outPixels, i);
+            VectorMask<Float> set = v.compare(VectorOperators.NE, 0f);
+            out.mul(a).add(v.mul(b)).intoArray(outPixels, i, set);
+        }
+        for (; i < n; ++i) {
+            if (pixels[i] != 0)
+                outPixels[i] = (float)(alpha * outPixels[i] + (1.0 - alpha) * pixels[i]);
+        }
+    }
+
+    double subtractDotSums2(float[] outPixels, float[] pixels,
+                            float[] sd0, float[] sd1, double[] b, int[] runs)
+    {
+        DoubleVector acc = DoubleVector.zero(D);
+        DoubleVector acc0 = acc, acc1 = acc;
+        double sum = 0.0, b0 = 0.0, b1 = 0.0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int i = runs[r];
+            int end = i + F.loopBound(runs[r + 1] - i);
+            while (i < end) {
+                int blockEnd = Math.min(end, i + BLOCK * LANES);
+                FloatVector f = FloatVector.zero(F);
+                FloatVector f0 = f, f1 = f;
+                for (; i < blockEnd; i += LANES) {
+                    FloatVector e = FloatVector.fromArray(F, outPixels, i)
+                        .sub(FloatVector.fromArray(F, pixels, i));
+                    e.intoArray(outPixels, i);
+                    f = e.fma(e, f);
+                    f0 = FloatVector.fromArray(F, sd0, i).fma(e, f0);
+                    f1 = FloatVector.fromArray(F, sd1, i).fma(e, f1);
+                }
+                acc = acc.add(widen(f));
+                acc0 = acc0.add(widen(f0));
+                acc1 = acc1.add(widen(f1));
+            }
+            for (; i < runs[r + 1]; ++i) {
+                float e = outPixels[i] - pixels[i];
+                outPixels[i] = e;
+                sum += e * e;
+                b0 += sd0[i] * e;
+                b1 += sd1[i] * e;
+            }
+        }
+        b[0] = b0 + acc0.reduceLanes(VectorOperators.ADD);
+        b[1] = b1 + acc1.reduceLanes(VectorOperators.ADD);
+        return sum + acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    double subtractDotSums6(float[] outPixels, float[] pixels,
+                            float[][] sd, double[] b, int[] runs)
+    {
+        float[] sd0 = sd[0], sd1 = sd[1], sd2 = sd[2];
+        float[] sd3 = sd[3], sd4 = sd[4], sd5 = sd[5];
+        DoubleVector acc = DoubleVector.zero(D);
+        DoubleVector acc0 = acc, acc1 = acc, acc2 = acc;
+        DoubleVector acc3 = acc, acc4 = acc, acc5 = acc;
+        double sum = 0.0, b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0, b4 = 0.0, b5 = 0.0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int i = runs[r];
+            int end = i + F.loopBound(runs[r + 1] - i);
+            while (i < end) {
+                int blockEnd = Math.min(end, i + BLOCK * LANES);
+                FloatVector f = FloatVector.zero(F);
+                FloatVector f0 = f, f1 = f, f2 = f, f3 = f, f4 = f, f5 = f;
+                for (; i < blockEnd; i += LANES) {
+                    FloatVector e = FloatVector.fromArray(F, outPixels, i)
+                        .sub(FloatVector.fromArray(F, pixels, i));
+                    e.intoArray(outPixels, i);
+                    f = e.fma(e, f);
+                    f0 = FloatVector.fromArray(F, sd0, i).fma(e, f0);
+                    f1 = FloatVector.fromArray(F, sd1, i).fma(e, f1);
+                    f2 = FloatVector.fromArray(F, sd2, i).fma(e, f2);
+                    f3 = FloatVector.fromArray(F, sd3, i).fma(e, f3);
+                    f4 = FloatVector.fromArray(F, sd4, i).fma(e, f4);
+                    f5 = FloatVector.fromArray(F, sd5, i).fma(e, f5);
+                }
+                acc = acc.add(widen(f));
+                acc0 = acc0.add(widen(f0));
+                acc1 = acc1.add(widen(f1));
+                acc2 = acc2.add(widen(f2));
+                acc3 = acc3.add(widen(f3));
+                acc4 = acc4.add(widen(f4));
+                acc5 = acc5.add(widen(f5));
+            }
+            for (; i < runs[r + 1]; ++i) {
+                float e = outPixels[i] - pixels[i];
+                outPixels[i] = e;
+                sum += e * e;
+                b0 += sd0[i] * e;
+                b1 += sd1[i] * e;
+                b2 += sd2[i] * e;
+                b3 += sd3[i] * e;
+                b4 += sd4[i] * e;
+                b5 += sd5[i] * e;
+            }
+        }
+        b[0] = b0 + acc0.reduceLanes(VectorOperators.ADD);
+        b[1] = b1 + acc1.reduceLanes(VectorOperators.ADD);
+        b[2] = b2 + acc2.reduceLanes(VectorOperators.ADD);
+        b[3] = b3 + acc3.reduceLanes(VectorOperators.ADD);
+        b[4] = b4 + acc4.reduceLanes(VectorOperators.ADD);
+        b[5] = b5 + acc5.reduceLanes(VectorOperators.ADD);
+        return sum + acc.reduceLanes(VectorOperators.ADD);
+    }
+}
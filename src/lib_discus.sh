@@ -31,6 +31,8 @@ echo -e "\033[1mUSAGE\033[0m
   \033[1mcal, calib\033[0m       measure calibration data for the tracking
   \033[1mcom, compass\033[0m     track the compass manually
   \033[1ml, larva\033[0m         track the larva(e) manually
+  \033[1mp, pipeline\033[0m      stabilize, measure the aquarium and track the larva
+                   automatically, in one go (uses the last calibration)
   \033[1mc, correct\033[0m       correct the tracks
   \033[1ms, stats\033[0m         compute statistics and plots
   \033[1mall\033[0m              calibrate, track larva, correct and compute stats
@@ -44,6 +46,14 @@ echo -e "\033[1mUSAGE\033[0m
                         (has no effect when < to -sub)
   \033[1m-bin\033[0m        stats  0  angle over which to bin angles, in degrees
   \033[1m-d|-display\033[0m stats     display the plots after stats
+  \033[1m-mask\033[0m        stab     stabilize on the surroundings of the aquarium only
+                        (uses the aquarium of the last calibration)
+  \033[1m-incr\033[0m        stab     stabilize only the images added since the last time
+                        (same as -incremental)
+  \033[1m-auto\033[0m      larva     track the larva automatically
+                        (uses the aquarium of the last calibration)
+  \033[1m-proxy\033[0m      l,com  50  size of the images to track on, in %
+                        (a reduced copy is kept in the deployment directory)
 
 \033[1mPARAMETERS\033[0m
   Parameters are written in the configuration file after they are set.
@@ -53,7 +63,9 @@ echo -e "\033[1mUSAGE\033[0m
   \033[1m-diam\033[0m      40    aquarium diameter, in cm
   \033[1m-a|-angle\033[0m  90    angle between camera and compass, in degrees
   \033[1m-m|-mem\033[0m    1000  memory for ImageJ, in MB
-                   (should be at most a 2/3 of the physical memory)"
+                   (should be at most a 2/3 of the physical memory)
+  \033[1m-threads\033[0m   1     threads used to stabilize images and track automatically
+                   (0 uses all processors)"
 
 	return 0
 }
@@ -271,9 +283,9 @@ sync_data() {
 
 	# RSync options to test for differences
 	# for small files we use checksum and time comparison
-	rsoptsSmall="--recursive --checksum --update --exclude=.* --exclude=*tmp/ --exclude=*pics/ --exclude=*.mov"
+	rsoptsSmall="--recursive --checksum --update --exclude=.* --exclude=*tmp/ --exclude=*proxy/ --exclude=*pics/ --exclude=*.mov --exclude=*.cache"
 	# for large files we use size only comparison (which is faster)
-	rsoptsLarge="--recursive --size-only --exclude=*tmp/ --include=*/ --include=*.jpg --include=*.mov --exclude=*"
+	rsoptsLarge="--recursive --size-only --exclude=*tmp/ --exclude=*proxy/ --include=*/ --include=*.jpg --include=*.mov --exclude=*"
 
 
 	# GET DATA FROM STORAGE
@@ -451,3 +463,87 @@ write_pref() {
 
 	return 0
 }
+
+#
+# USAGE
+#	plugins_checksum [plugins_directory]
+# Print the checksum of the sources of the ImageJ plugins and of the vector kernels
+# The environment variable $ijPath must be already defined
+#
+plugins_checksum() {
+	plugins=$1
+
+	cat $plugins/*.java $ijPath/vector/*.java | cksum
+}
+
+#
+# USAGE
+#	compile_vector_kernels [plugins_directory]
+# Compile the vector kernels of the Image Stabilizer into the plugins directory
+# when Java provides the Vector API, i.e. when $javaVector is defined
+# Failing to compile them is not an error: the stabilizer then uses its scalar kernels
+# The environment variables $ijPath and $javaVector must be already defined
+#
+compile_vector_kernels() {
+	plugins=$1
+
+	# never leave kernels compiled from older sources
+	rm -f $plugins/VectorKernels*.class
+	if [[ $javaVector == "" ]]; then
+		warning "Java has no Vector API, the vector kernels of the Image Stabilizer are not compiled"
+		return 0
+	fi
+	javac -nowarn -encoding UTF-8 $javaVector -cp $ijPath/ij.jar:$plugins -d $plugins $ijPath/vector/*.java > /dev/null 2>&1
+	if [[ $? != 0 ]]; then
+		warning "Cannot compile the vector kernels of the Image Stabilizer, using the scalar ones"
+	fi
+
+	return 0
+}
+
+#
+# USAGE
+#	compile_plugins [plugins_directory]
+# Compile the ImageJ plugins, for Java 8 and later, and the vector kernels of the Image Stabilizer
+# then record the checksum of their sources in plugins.cksum
+# The compiled classes are distributed with the sources, so this is only needed after changing them
+# Exits with the errors of the compiler when the plugins do not compile
+# The environment variables $ijPath and $javaVector must be already defined
+#
+compile_plugins() {
+	plugins=$1
+
+	echo "Compile plugins"
+	javacCmd=$(which javac)
+	status $? "javac not found. Please install a Java JDK to compile the ImageJ plugins"
+	errors=$($javacCmd -nowarn -encoding UTF-8 --release 8 -cp $ijPath/ij.jar -d $plugins $plugins/*.java 2>&1)
+	if [[ $? != 0 ]]; then
+		echo "$errors"
+		status 1 "Cannot compile the ImageJ plugins"
+	fi
+	compile_vector_kernels $plugins
+	plugins_checksum $plugins > $plugins/plugins.cksum
+
+	return 0
+}
+
+#
+# USAGE
+#	check_plugins [plugins_directory]
+# Check that the compiled ImageJ plugins match their sources, which ImageJ never compiles
+# When a source changed since the plugins were compiled, compile them again if a JDK is installed,
+# and exit otherwise, rather than run outdated classes
+# The environment variables $ijPath and $javaVector must be already defined
+#
+check_plugins() {
+	plugins=$1
+
+	if [[ -e $plugins/plugins.cksum && "$(plugins_checksum $plugins)" == "$(cat $plugins/plugins.cksum)" ]]; then
+		return 0
+	fi
+	which javac > /dev/null
+	status $? "The ImageJ plugins in $plugins changed since they were compiled.\nPlease install a Java JDK to compile them, or restore their original sources."
+	compile_plugins $plugins
+
+	return 0
+}